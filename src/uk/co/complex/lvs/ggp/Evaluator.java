@@ -0,0 +1,21 @@
+package uk.co.complex.lvs.ggp;
+
+/**
+ * An Evaluator estimates the value of a state from the position alone, without looking ahead. The
+ * depth-limited players can use it to evaluate the states at the end of their search instead of
+ * playing random walks to the end of the game, which is far cheaper.
+ *
+ * An evaluator belongs to a single game. It may be used by several threads at once, so it should
+ * not keep any state between calls.
+ * @author Lex van der Stoep
+ */
+public interface Evaluator {
+	/**
+	 * Estimates the score which the given player will get at the end of the game.
+	 * @param s A state which is not terminal
+	 * @param role The role of the player, which is its index in State.getPlayers()
+	 * @return The estimated score, on the same scale as the scores of the game. It should be
+	 * strictly between the scores of a loss and a win, so that proven results are preferred.
+	 */
+	public int evaluate(State s, int role);
+}
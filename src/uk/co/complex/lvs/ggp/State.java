@@ -1,6 +1,7 @@
 package uk.co.complex.lvs.ggp;
 
 import java.util.List;
+import java.util.SplittableRandom;
 
 /**
  * Represents the state of a game.
@@ -9,6 +10,11 @@ import java.util.List;
 public abstract class State implements Cloneable {
 	private List<Player> mPlayers;
 	
+	// The Zobrist hash of the position: the XOR of a random key for every piece on the board, and
+	// of a key for the player to move (if it is not the first player). Subclasses update it
+	// whenever a piece or the turn changes, so that it never has to be computed from scratch.
+	protected long hash = 0;
+	
 	public State(List<Player> players) {
 		mPlayers = players;
 	}
@@ -17,6 +23,50 @@ public abstract class State implements Cloneable {
 		return mPlayers;
 	}
 	
+	/**
+	 * Gets the role of the given player, which is its index in the list of players. Roles are 
+	 * used to index joint moves and scores without hashing.
+	 * @param p The player
+	 * @return The role of the player, or -1 if the player does not play the game
+	 */
+	public int getRole(Player p) {
+		return mPlayers.indexOf(p);
+	}
+	
+	/**
+	 * Gets the 64-bit Zobrist hash of this state. Equal states have equal hashes, and different
+	 * states are very unlikely to collide, so the hash can be used as a key for transposition
+	 * tables and caches. It is maintained incrementally, so this takes constant time.
+	 * @return The hash of the position
+	 */
+	public long getHash() {
+		return hash;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Long.hashCode(hash);
+	}
+	
+	/**
+	 * Generates a table of Zobrist keys. The keys are pseudo-random, but the same on every call
+	 * with the same game, so that the hashes of equal positions agree across states and runs.
+	 * Every game (and every board size of a game) should use its own name, so that the keys of
+	 * different games are drawn from different sequences and a table which is shared between
+	 * games does not confuse their positions.
+	 *
+	 * The hash describes the position by role, not by player: it does not change when other
+	 * players take the roles, while equals does compare the players. A table of hashes should
+	 * therefore be cleared when the players of the states change, as the players do at the start
+	 * of every game.
+	 * @param game The name of the game, including any parameters which change its keys
+	 * @param n The number of keys
+	 * @return The keys
+	 */
+	protected static long[] zobristKeys(String game, int n) {
+		return new SplittableRandom(0x5DEECE66DL ^ game.hashCode()).longs(n).toArray();
+	}
+	
 	@Override
 	public abstract State clone();
 }
@@ -1,5 +1,6 @@
 package uk.co.complex.lvs.ggp;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -46,4 +47,225 @@ public interface StateMachine {
 	 * @return The initial state
 	 */
 	public State getInitialState(List<Player> players);
+	
+	/**
+	 * Applies the moves of all players to the given state. The moves are indexed by role, which 
+	 * is the index of the player in State.getPlayers().
+	 * @param s Current state
+	 * @param moves Moves to apply, indexed by role
+	 * @return The next state
+	 * @throws IllegalMoveException It is not possible to apply the moves to the given state.
+	 */
+	public default State getNextState(State s, Move[] moves) throws IllegalMoveException {
+		return getNextState(s, toMoveMap(s, moves));
+	}
+	
+	/**
+	 * Computes the score for each of the players and writes them into the given array, indexed by
+	 * role. The role of a player is its index in State.getPlayers().
+	 * @param s Current state
+	 * @param scores Array of at least the number of players, into which the scores are written
+	 */
+	public default void getScores(State s, int[] scores) {
+		Map<Player, Integer> scoreMap = getScores(s);
+		List<Player> players = s.getPlayers();
+		for (int role = 0; role < players.size(); role++) {
+			scores[role] = scoreMap.get(players.get(role));
+		}
+	}
+	
+	/**
+	 * Computes whether the given state is terminal and the score for each of the players at once.
+	 * Games which find the winner while checking for a terminal state should override this, so
+	 * that the search players do not have to scan the state twice.
+	 * @param s Current state
+	 * @param scores Array of at least the number of players, into which the scores are written, 
+	 * indexed by role
+	 * @return True if the state is terminal, false otherwise
+	 */
+	public default boolean evaluate(State s, int[] scores) {
+		getScores(s, scores);
+		return isTerminal(s);
+	}
+	
+	/**
+	 * Indicates whether this StateMachine can apply moves to a state in place, using applyMoves 
+	 * and undoMoves. Searching players use this to avoid cloning the state at every node.
+	 * @return True if applyMoves and undoMoves are supported, false otherwise
+	 */
+	public default boolean supportsUndo() {
+		return false;
+	}
+	
+	/**
+	 * Applies the moves of all players to the given state in place, rather than creating a new 
+	 * state like getNextState does. The change can be reverted with undoMoves.
+	 * @param s Current state, which becomes the next state
+	 * @param moves Moves to apply
+	 * @throws IllegalMoveException It is not possible to apply the moves to the given state. The 
+	 * state is left unchanged.
+	 */
+	public default void applyMoves(State s, Map<Player, Move> moves) throws IllegalMoveException {
+		throw new UnsupportedOperationException("This game does not support in-place moves");
+	}
+	
+	/**
+	 * Applies the moves of all players, indexed by role, to the given state in place. The change 
+	 * can be reverted with undoMoves.
+	 * @param s Current state, which becomes the next state
+	 * @param moves Moves to apply, indexed by role
+	 * @throws IllegalMoveException It is not possible to apply the moves to the given state. The
+	 * state is left unchanged.
+	 */
+	public default void applyMoves(State s, Move[] moves) throws IllegalMoveException {
+		applyMoves(s, toMoveMap(s, moves));
+	}
+	
+	/**
+	 * Gets the player whose turn it is, for games in which the players take turns. In such a game
+	 * the only move of every other player is a null move, so it suffices to apply the move of the
+	 * current player with getNextState(State, Move) or applyMove.
+	 * @param s Current state
+	 * @return The player whose turn it is, or null if the players move simultaneously
+	 */
+	public default Player getCurrentPlayer(State s) {
+		return null;
+	}
+	
+	/**
+	 * Applies the move of the player whose turn it is to the given state. The other players play
+	 * their only possible move.
+	 * @param s Current state
+	 * @param move Move of the current player
+	 * @return The next state
+	 * @throws IllegalMoveException It is not possible to apply the move to the given state.
+	 */
+	public default State getNextState(State s, Move move) throws IllegalMoveException {
+		return getNextState(s, completeMoves(s, move));
+	}
+	
+	/**
+	 * Applies the move of the player whose turn it is to the given state in place. The other 
+	 * players play their only possible move. The change can be reverted with undoMoves.
+	 * @param s Current state, which becomes the next state
+	 * @param move Move of the current player
+	 * @throws IllegalMoveException It is not possible to apply the move to the given state. The
+	 * state is left unchanged.
+	 */
+	public default void applyMove(State s, Move move) throws IllegalMoveException {
+		applyMoves(s, completeMoves(s, move));
+	}
+	
+	/**
+	 * Completes the move of a single player to the moves of all players, by letting every other
+	 * player play its only possible move.
+	 */
+	public default Map<Player, Move> completeMoves(State s, Move move) 
+			throws IllegalMoveException {
+		Map<Player, Move> moves = new HashMap<>();
+		for (Player p : s.getPlayers()) {
+			if (p == move.getPlayer()) {
+				moves.put(p, move);
+			} else {
+				List<Move> possibleMoves = getMoves(s, p);
+				if (possibleMoves.size() != 1) throw new IllegalMoveException(s, move);
+				moves.put(p, possibleMoves.get(0));
+			}
+		}
+		return moves;
+	}
+	
+	/**
+	 * Reverts the moves which were most recently applied to the given state with applyMoves. Only
+	 * moves applied to this very state object can be undone.
+	 * @param s State to revert, which becomes the previous state
+	 */
+	public default void undoMoves(State s) {
+		throw new UnsupportedOperationException("This game does not support in-place moves");
+	}
+	
+	/**
+	 * Indicates whether this StateMachine supports fast random playouts, using copyState,
+	 * getMoveCodes and applyMoveCode. These work without allocating, so that a playout does not
+	 * create any garbage. Only turn-based games can support them.
+	 * @return True if copyState, getMoveCodes and applyMoveCode are supported, false otherwise
+	 */
+	public default boolean supportsPlayouts() {
+		return false;
+	}
+	
+	/**
+	 * Copies a state into another state of the same game, so that a scratch state can be reused
+	 * instead of cloning the state.
+	 * @param from State to copy
+	 * @param to State to overwrite, or null
+	 * @return The copy. This is the given state to overwrite, unless it is null or cannot hold
+	 * the copy, in which case it is a new state.
+	 */
+	public default State copyState(State from, State to) {
+		throw new UnsupportedOperationException("This game does not support playouts");
+	}
+	
+	/**
+	 * Writes the codes of the moves of the player whose turn it is into the given buffer. A move
+	 * code is an int which identifies a move in the given state, and can be applied with 
+	 * applyMoveCode.
+	 * @param s Current state
+	 * @param codes Buffer into which the codes are written
+	 * @return The number of moves. If it is larger than the length of the buffer, only the codes
+	 * which fit have been written.
+	 */
+	public default int getMoveCodes(State s, int[] codes) {
+		throw new UnsupportedOperationException("This game does not support playouts");
+	}
+	
+	/**
+	 * Applies the move with the given code, as written by getMoveCodes, to the given state in 
+	 * place. The other players play their only possible move. The move is not checked and cannot
+	 * be undone with undoMoves.
+	 * @param s Current state, which becomes the next state
+	 * @param code Code of a move of the player whose turn it is
+	 */
+	public default void applyMoveCode(State s, int code) {
+		throw new UnsupportedOperationException("This game does not support playouts");
+	}
+	
+	/**
+	 * Converts moves indexed by player to moves indexed by role.
+	 * @throws IllegalMoveException One of the moves belongs to a player who does not play the game
+	 */
+	public static Move[] toRoleMoves(State s, Map<Player, Move> moves) 
+			throws IllegalMoveException {
+		Move[] roleMoves = new Move[s.getPlayers().size()];
+		for (Map.Entry<Player, Move> entry : moves.entrySet()) {
+			int role = s.getRole(entry.getKey());
+			if (role < 0) throw new IllegalMoveException(s, entry.getValue());
+			roleMoves[role] = entry.getValue();
+		}
+		return roleMoves;
+	}
+	
+	/**
+	 * Converts moves indexed by role to moves indexed by player.
+	 */
+	public static Map<Player, Move> toMoveMap(State s, Move[] moves) {
+		List<Player> players = s.getPlayers();
+		Map<Player, Move> moveMap = new HashMap<>();
+		for (int role = 0; role < moves.length; role++) {
+			if (moves[role] != null) moveMap.put(players.get(role), moves[role]);
+		}
+		return moveMap;
+	}
+	
+	/**
+	 * Converts scores indexed by role to scores indexed by player.
+	 */
+	public static Map<Player, Integer> toScoreMap(State s, int[] scores) {
+		List<Player> players = s.getPlayers();
+		Map<Player, Integer> scoreMap = new HashMap<>();
+		for (int role = 0; role < players.size(); role++) {
+			scoreMap.put(players.get(role), scores[role]);
+		}
+		return scoreMap;
+	}
 }
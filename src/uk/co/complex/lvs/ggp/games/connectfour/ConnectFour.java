@@ -1,7 +1,6 @@
 package uk.co.complex.lvs.ggp.games.connectfour;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -13,6 +12,22 @@ public class ConnectFour implements StateMachine {
 	private final int loseScore = -100;
 	private final int drawScore = 0;
 	
+	// The shifts of the bitboards which move a disc one step vertically, horizontally and along
+	// both diagonals
+	private static final int[] DIRECTIONS = {1, ConnectFourState.COLUMN_BITS, 
+			ConnectFourState.COLUMN_BITS - 1, ConnectFourState.COLUMN_BITS + 1};
+	
+	// The bitboard in which every box of the board is occupied
+	static final long FULL_BOARD;
+	static {
+		long column = (1L << ConnectFourState.HEIGHT) - 1;
+		long board = 0;
+		for (int col = 0; col < ConnectFourState.WIDTH; col++) {
+			board |= column << (col * ConnectFourState.COLUMN_BITS);
+		}
+		FULL_BOARD = board;
+	}
+	
 	@Override
 	public List<Move> getMoves(State s, Player p) {
 		ConnectFourState state = (ConnectFourState) s;
@@ -27,9 +42,8 @@ public class ConnectFour implements StateMachine {
 			moves.add(move);
 		} else {
 			// Return all possible moves (columns of the board which are not fully filled yet)
-			int height = state.board[0].length;
-			for (int col = 0; col < state.board.length; col++) {
-				if (state.board[col][height - 1] == BoxState.empty) {
+			for (int col = 0; col < ConnectFourState.WIDTH; col++) {
+				if (state.heights[col] < ConnectFourState.HEIGHT) {
 					ConnectFourMove move = new ConnectFourMove(p, col);
 					moves.add(move);
 				}
@@ -41,38 +55,117 @@ public class ConnectFour implements StateMachine {
 
 	@Override
 	public State getNextState(State s, Map<Player, Move> moves) throws IllegalMoveException {
+		return getNextState(s, StateMachine.toRoleMoves(s, moves));
+	}
+	
+	@Override
+	public State getNextState(State s, Move[] moves) throws IllegalMoveException {
+		ConnectFourState state = (ConnectFourState) s.clone();
+		play(state, getDroppedColumn(state, moves));
+		return state;
+	}
+	
+	@Override
+	public State getNextState(State s, Move move) throws IllegalMoveException {
 		ConnectFourState state = (ConnectFourState) s.clone();
+		play(state, getDroppedColumn(state, move));
+		return state;
+	}
+	
+	@Override
+	public Player getCurrentPlayer(State s) {
+		ConnectFourState state = (ConnectFourState) s;
 		List<Player> players = state.getPlayers();
-		Player currentPlayer = state.xTurn?players.get(0):players.get(1);
+		return state.xTurn?players.get(0):players.get(1);
+	}
+	
+	@Override
+	public boolean supportsUndo() {
+		return true;
+	}
+	
+	@Override
+	public void applyMoves(State s, Map<Player, Move> moves) throws IllegalMoveException {
+		applyMoves(s, StateMachine.toRoleMoves(s, moves));
+	}
+	
+	@Override
+	public void applyMoves(State s, Move[] moves) throws IllegalMoveException {
+		ConnectFourState state = (ConnectFourState) s;
+		int col = getDroppedColumn(state, moves);
+		play(state, col);
+		state.pushHistory(col);
+	}
+	
+	@Override
+	public void applyMove(State s, Move move) throws IllegalMoveException {
+		ConnectFourState state = (ConnectFourState) s;
+		int col = getDroppedColumn(state, move);
+		play(state, col);
+		state.pushHistory(col);
+	}
+	
+	@Override
+	public void undoMoves(State s) {
+		ConnectFourState state = (ConnectFourState) s;
+		int col = state.popHistory();
+		if (col >= 0) state.remove(col);
+		state.passTurn();
+	}
+	
+	@Override
+	public boolean supportsPlayouts() {
+		return true;
+	}
+	
+	@Override
+	public State copyState(State from, State to) {
+		ConnectFourState state = (ConnectFourState) from;
+		if (!(to instanceof ConnectFourState) || to.getPlayers() != state.getPlayers()) {
+			return state.clone();
+		}
+		((ConnectFourState) to).copyFrom(state);
+		return to;
+	}
+	
+	/**
+	 * The code of a move is the column in which the disc is dropped.
+	 */
+	@Override
+	public int getMoveCodes(State s, int[] codes) {
+		ConnectFourState state = (ConnectFourState) s;
+		int n = 0;
+		for (int col = 0; col < ConnectFourState.WIDTH; col++) {
+			if (state.heights[col] < ConnectFourState.HEIGHT) {
+				if (n < codes.length) codes[n] = col;
+				n++;
+			}
+		}
+		return n;
+	}
+	
+	@Override
+	public void applyMoveCode(State s, int code) {
+		play((ConnectFourState) s, code);
+	}
+	
+	/**
+	 * Checks the moves for all the players, indexed by role. If it is not the player's turn, then
+	 * the move should be the null move. If it is the player's turn, then the move should be 
+	 * checked for validity.
+	 * @return The column in which a disc is dropped, or -1 if no disc is dropped
+	 */
+	private int getDroppedColumn(ConnectFourState state, Move[] moves) 
+			throws IllegalMoveException {
+		int currentRole = state.xTurn?0:1;
+		int col = -1;
 		
-		// Check the moves for all the players. If it is not the player's turn, then the move 
-		// should be the null move. If it is the player's turn, then the move should be 
-		// checked for validity.
-		for (Player p: moves.keySet()) {
-			ConnectFourMove m = (ConnectFourMove) moves.get(p);
+		for (int role = 0; role < moves.length; role++) {
+			ConnectFourMove m = (ConnectFourMove) moves[role];
+			if (m == null) continue;
 			
-			if (p == currentPlayer) {
-				// Check if the column index is not out of bounds
-				if (m.index < 0 || m.index >= state.board.length) {
-					throw new IllegalMoveException(state, m);
-				}
-				
-				// Find the row index of the first empty cell in the column
-				int row = -1;
-				for (int i = 0; i < state.board[m.index].length; i++) {
-					if (state.board[m.index][i] == BoxState.empty) {
-						row = i;
-						break;
-					}
-				}
-				
-				// If no empty cell was found, then the column is full and the move is invalid
-				if (row < 0) {
-					throw new IllegalMoveException(state, m);
-				}
-				
-				// Update the board
-				state.board[m.index][row] = state.xTurn?BoxState.X:BoxState.O;
+			if (role == currentRole) {
+				col = getDroppedColumn(state, m);
 			} else {
 				// If it is not the player's turn, then check if it's the null move
 				if (m.index != -1) {
@@ -81,144 +174,78 @@ public class ConnectFour implements StateMachine {
 			}
 		}
 		
-		// Change who's turn it is
-		state.xTurn = !state.xTurn;
+		return col;
+	}
+	
+	/**
+	 * Checks the validity of a move of the player whose turn it is.
+	 * @return The column in which a disc is dropped
+	 */
+	private int getDroppedColumn(ConnectFourState state, Move move) 
+			throws IllegalMoveException {
+		ConnectFourMove m = (ConnectFourMove) move;
+		if (m.getPlayer() != getCurrentPlayer(state)) throw new IllegalMoveException(state, m);
 		
-		return state;
+		// Check if the column index is not out of bounds
+		if (m.index < 0 || m.index >= ConnectFourState.WIDTH) {
+			throw new IllegalMoveException(state, m);
+		}
+		
+		// If the column is full, then the move is invalid
+		if (state.heights[m.index] == ConnectFourState.HEIGHT) {
+			throw new IllegalMoveException(state, m);
+		}
+		
+		return m.index;
+	}
+	
+	private void play(ConnectFourState state, int col) {
+		// Drop the disc on top of the column
+		if (col >= 0) state.drop(col);
+		
+		// Change who's turn it is
+		state.passTurn();
 	}
 
 	@Override
 	public boolean isTerminal(State s) {
 		ConnectFourState state = (ConnectFourState) s;
 		
-		Map<Player, Integer> scores = getScores(state);
-		List<Player> players = state.getPlayers();
-		
-		// If any of the scores is not the draw score, then it is a terminal state
-		if (scores.get(players.get(0)) != drawScore) return true;
-		if (scores.get(players.get(1)) != drawScore) return true;
-		
-		// Check if there is an empty column left
-		for (int col = 0; col < state.board.length; col++) {
-			int height = state.board[col].length;
-			if (state.board[col][height - 1] == BoxState.empty) return false;
-		}
-		
-		return true;
+		// If any player has four in a row or if the board is full, then it is a terminal state
+		return getWinner(state) != BoxState.empty || isFull(state);
 	}
 
 	@Override
 	public Map<Player, Integer> getScores(State s) {
+		int[] scores = new int[2];
+		getScores(s, scores);
+		return StateMachine.toScoreMap(s, scores);
+	}
+	
+	@Override
+	public void getScores(State s, int[] scores) {
+		evaluate(s, scores);
+	}
+	
+	@Override
+	public boolean evaluate(State s, int[] scores) {
 		ConnectFourState state = (ConnectFourState) s;
-		List<Player> players = state.getPlayers();
-		
-		// Fill the score table with the scores of an non terminal game
-		Map<Player, Integer> scores = new HashMap<>();
-		scores.put(players.get(0), drawScore);
-		scores.put(players.get(1), drawScore);
-		
-		BoxState winner = BoxState.empty;
-		
-		boolean found = false;
-		
-		// Check vertical lines
-		for (int c = 0; c < state.board.length; c++) {
-			for (int r = 0; r < state.board[0].length - 3; r++) {
-				winner = checkWinner(state.board, c, r, c, r + 1, c, r + 2, c, r + 3);
-				if (winner != BoxState.empty) {
-					found = true;
-					break;
-				}
-			}
-			if (found) break;
-		}
-
-		if (!found) {
-			// Check horizontal lines
-			for (int r = 0; r < state.board[0].length; r++) {
-				for (int c = 0; c < state.board.length - 3; c++) {
-					winner = checkWinner(state.board, c, r, c + 1, r, c + 2, r, c + 3, r);
-					if (winner != BoxState.empty) {
-						found = true;
-						break;
-					}
-				}
-				if (found) break;
-			}
-		}
-
-		if (!found) {
-			// Check diagonal lines (left-up to right-down)
-			for (int rowStart = 3; rowStart < state.board[0].length; rowStart++) {
-				// Check for four-in-a-row from (0, rowStart) on
-				for (int i = 0; i <= rowStart - 3; i++) {
-					int r = rowStart - i;
-					int c = i;
-					winner = checkWinner(state.board, c, r, c + 1, r - 1, c + 2, r - 2, c + 3, r - 3);
-					if (winner != BoxState.empty) {
-						found = true;
-						break;
-					}
-				}
-				if (found) break;
-			}
-		}
-		if (!found) {
-			for (int colStart = 1; colStart < state.board.length - 3; colStart++) {
-				// Check for four-in-a-row from (colStart, height-1) on
-				for (int i = 0; i <= (3- colStart); i++) {
-					int r = state.board[0].length - 1 - i;
-					int c = colStart + i;
-					winner = checkWinner(state.board, c, r, c + 1, r - 1, c + 2, r - 2, c + 3, r - 3);
-					if (winner != BoxState.empty) {
-						found = true;
-						break;
-					}
-				}
-				if (found) break;
-			}
-		}
-
-		if (!found) {
-			// Check diagonal lines (right-up to left-down)
-			for (int rowStart = 3; rowStart < state.board[0].length; rowStart++) {
-				// Check for four-in-a-row from (width-1, rowStart) on
-				for (int i = 0; i <= rowStart - 3; i++) {
-					int r = rowStart - i;
-					int c = state.board.length - 1 - i;
-					winner = checkWinner(state.board, c, r, c - 1, r - 1, c - 2, r - 2, c - 3, r - 3);
-					if (winner != BoxState.empty) {
-						found = true;
-						break;
-					}
-				}
-				if (found) break;
-			}
-		}
-		if (!found) {
-			for (int colStart = state.board.length - 2; colStart >= 3; colStart--) {
-				// Check for four-in-a-row from (colStart, height-1) on
-				for (int i = 0; i <= colStart - 3; i++) {
-					int r = state.board[0].length - 1 - i;
-					int c = colStart - i;
-					winner = checkWinner(state.board, c, r, c - 1, r - 1, c - 2, r - 2, c - 3, r - 3);
-					if (winner != BoxState.empty) {
-						found = true;
-						break;
-					}
-				}
-				if (found) break;
-			}
-		}
+		BoxState winner = getWinner(state);
 		
 		if (winner == BoxState.X) {
-			scores.put(players.get(0), winScore);
-			scores.put(players.get(1), loseScore);
+			scores[0] = winScore;
+			scores[1] = loseScore;
+			return true;
 		} else if (winner == BoxState.O) {
-			scores.put(players.get(0), loseScore);
-			scores.put(players.get(1), winScore);
+			scores[0] = loseScore;
+			scores[1] = winScore;
+			return true;
 		}
-		return scores;
+		
+		// Fill the score table with the scores of an non terminal game
+		scores[0] = drawScore;
+		scores[1] = drawScore;
+		return isFull(state);
 	}
 
 	@Override
@@ -229,25 +256,33 @@ public class ConnectFour implements StateMachine {
 		return initialState;
 	}
 	
-	private BoxState checkWinner(BoxState[][] board, int c1, int r1, int c2, int r2, int c3, 
-			int r3, int c4, int r4) {
-		// Checks whether the four points (c1, r1), (c2, r2), ... are all occupied by one player.
-		// If so, return that player. Else, return empty.
-		
-		int Rs = 0;
-		int Ys = 0;
-		
-		if (board[c1][r1] == BoxState.X) Rs++;
-		if (board[c1][r1] == BoxState.O) Ys++;
-		if (board[c2][r2] == BoxState.X) Rs++;
-		if (board[c2][r2] == BoxState.O) Ys++;
-		if (board[c3][r3] == BoxState.X) Rs++;
-		if (board[c3][r3] == BoxState.O) Ys++;
-		if (board[c4][r4] == BoxState.X) Rs++;
-		if (board[c4][r4] == BoxState.O) Ys++;
-		
-		if (Rs == 4) return BoxState.X;
-		if (Ys == 4) return BoxState.O;
+	/**
+	 * Finds the player who has four in a row, if any.
+	 * @return X or O if that player has four in a row, empty otherwise
+	 */
+	private BoxState getWinner(ConnectFourState state) {
+		if (hasFourInARow(state.xDiscs)) return BoxState.X;
+		if (hasFourInARow(state.oDiscs)) return BoxState.O;
 		return BoxState.empty;
 	}
+	
+	private boolean isFull(ConnectFourState state) {
+		return (state.xDiscs | state.oDiscs) == FULL_BOARD;
+	}
+	
+	/**
+	 * Checks whether the discs of a bitboard contain four in a row. For each direction, the 
+	 * bitboard is ANDed with itself shifted by one step in that direction, which leaves the discs
+	 * that start two in a row. Doing the same with two steps leaves the discs that start four in a
+	 * row.
+	 * @param discs The bitboard of one player
+	 * @return True if the player has four in a row, false otherwise
+	 */
+	private static boolean hasFourInARow(long discs) {
+		for (int step : DIRECTIONS) {
+			long pairs = discs & (discs >>> step);
+			if ((pairs & (pairs >>> 2 * step)) != 0) return true;
+		}
+		return false;
+	}
 }
@@ -0,0 +1,132 @@
+package uk.co.complex.lvs.ggp.games.connectfour;
+
+import uk.co.complex.lvs.ggp.Evaluator;
+import uk.co.complex.lvs.ggp.State;
+
+/**
+ * Evaluates Connect Four states by counting open threats: the empty boxes which would complete a
+ * four in a row for one of the players. A threat which the player to move can fill right away
+ * wins the game, as do two threats of the opponent which can both be filled right away. Every
+ * other threat is worth a fixed amount, as it constrains the moves of the opponent for the rest
+ * of the game, and twice that if it lies on a row which the player fills when the board fills up
+ * (the odd rows for X, the even rows for O). Before there are any threats, the discs of a player
+ * are worth more the more lines of four pass through their boxes, which favours the centre.
+ *
+ * The threats are found with the bitboards of the state (see ConnectFourState). For every
+ * direction, a box completes a line if the discs one, two and three steps away on one side, or
+ * one step on one side and one or two steps on the other side, are all of the player.
+ * @author Lex van der Stoep
+ */
+public class ConnectFourEvaluator implements Evaluator {
+	private static final int THREAT_VALUE = 10;		// The value of a threat which is not playable
+	private static final int WIN_VALUE = 90;		// The value of a threat of the player to move
+													// which is playable
+	private static final int MAX_VALUE = 99;		// Just below the score of a win
+	private static final int POSITION_SCALE = 4;	// The number of lines of four through the
+													// discs of a player which are worth one point
+	private static final int MAX_WINDOWS = 13;		// The largest number of lines of four which
+													// pass through a single box
+
+	// The bottom box of every column, and the boxes on the odd rows (counting from one at the
+	// bottom)
+	private static final long BOTTOM;
+	private static final long ODD_ROWS;
+	static {
+		long bottom = 0;
+		for (int col = 0; col < ConnectFourState.WIDTH; col++) {
+			bottom |= 1L << (col * ConnectFourState.COLUMN_BITS);
+		}
+		BOTTOM = bottom;
+		ODD_ROWS = bottom | (bottom << 2) | (bottom << 4);
+	}
+
+	// The boxes of the board grouped by the number of lines of four which pass through them:
+	// WINDOWS[w] is the bitboard of the boxes which lie on w lines
+	private static final long[] WINDOWS = new long[MAX_WINDOWS + 1];
+	static {
+		int[][] steps = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+		for (int col = 0; col < ConnectFourState.WIDTH; col++) {
+			for (int row = 0; row < ConnectFourState.HEIGHT; row++) {
+				// Count the lines of four in each direction which contain this box
+				int count = 0;
+				for (int[] step : steps) {
+					for (int start = -3; start <= 0; start++) {
+						int c0 = col + start * step[0], r0 = row + start * step[1];
+						int c3 = c0 + 3 * step[0], r3 = r0 + 3 * step[1];
+						if (c0 >= 0 && c3 < ConnectFourState.WIDTH && Math.min(r0, r3) >= 0
+								&& Math.max(r0, r3) < ConnectFourState.HEIGHT) {
+							count++;
+						}
+					}
+				}
+				WINDOWS[count] |= 1L << (col * ConnectFourState.COLUMN_BITS + row);
+			}
+		}
+	}
+
+	@Override
+	public int evaluate(State s, int role) {
+		ConnectFourState state = (ConnectFourState) s;
+		long occupied = state.xDiscs | state.oDiscs;
+		long xThreats = getThreats(state.xDiscs, occupied);
+		long oThreats = getThreats(state.oDiscs, occupied);
+
+		// The boxes in which a disc can be dropped right now. Adding the bottom box of every
+		// column to its discs carries into the box above the highest disc.
+		long playable = (occupied + BOTTOM) & ConnectFour.FULL_BOARD;
+
+		long moverThreats = state.xTurn ? xThreats : oThreats;
+		long waiterThreats = state.xTurn ? oThreats : xThreats;
+		int value;
+		if ((moverThreats & playable) != 0) {
+			value = state.xTurn ? WIN_VALUE : -WIN_VALUE;
+		} else if (Long.bitCount(waiterThreats & playable) >= 2) {
+			// Only one of them can be blocked
+			value = state.xTurn ? -WIN_VALUE : WIN_VALUE;
+		} else {
+			// X fills the odd rows when the columns are filled up at the end of the game, and O
+			// the even rows, so their threats on those rows are the ones that count most
+			int xValue = Long.bitCount(xThreats) + Long.bitCount(xThreats & ODD_ROWS);
+			int oValue = Long.bitCount(oThreats) + Long.bitCount(oThreats & ~ODD_ROWS);
+			value = THREAT_VALUE * (xValue - oValue)
+					+ (getPosition(state.xDiscs) - getPosition(state.oDiscs)) / POSITION_SCALE;
+			value = Math.max(-MAX_VALUE, Math.min(MAX_VALUE, value));
+		}
+		return (role == 0) ? value : -value;
+	}
+
+	/**
+	 * Sums the number of lines of four which pass through the given discs. Discs in the centre of
+	 * the board can take part in more lines, so they are worth more.
+	 * @param discs The bitboard of one player
+	 */
+	private static int getPosition(long discs) {
+		int sum = 0;
+		for (int w = 1; w <= MAX_WINDOWS; w++) {
+			sum += w * Long.bitCount(discs & WINDOWS[w]);
+		}
+		return sum;
+	}
+
+	/**
+	 * Finds the empty boxes which would complete a four in a row for the given discs.
+	 * @param discs The bitboard of one player
+	 * @param occupied The bitboard of all discs
+	 * @return The bitboard of the threats
+	 */
+	private static long getThreats(long discs, long occupied) {
+		// Vertically, only the box above three discs can complete a line
+		long threats = (discs << 1) & (discs << 2) & (discs << 3);
+
+		for (int k = 0; k < 3; k++) {
+			int step = ConnectFourState.COLUMN_BITS - 1 + k;
+			long pairs = (discs << step) & (discs << 2 * step);
+			threats |= pairs & (discs << 3 * step);
+			threats |= pairs & (discs >>> step);
+			pairs = (discs >>> step) & (discs >>> 2 * step);
+			threats |= pairs & (discs << step);
+			threats |= pairs & (discs >>> 3 * step);
+		}
+		return threats & ConnectFour.FULL_BOARD & ~occupied;
+	}
+}
@@ -15,4 +15,17 @@ public class ConnectFourMove extends Move {
 	public static ConnectFourMove getNullMove(Player player) {
 		return new ConnectFourMove(player, -1);
 	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ConnectFourMove)) return false;
+
+		ConnectFourMove other = (ConnectFourMove) o;
+		return index == other.index && getPlayer() == other.getPlayer();
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * getPlayer().hashCode() + index;
+	}
 }
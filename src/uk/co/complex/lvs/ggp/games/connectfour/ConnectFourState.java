@@ -9,37 +9,132 @@ import uk.co.complex.lvs.ggp.State;
 public class ConnectFourState extends State {
 	/* The Connect Four board will be 7x6 (7 columns, 6 rows). The index of the bottom-left element
 	 * is (0, 0). The index of the top-right element is (6, 5).
-	 * 
+	 *
 	 * The first player is X, the second player is O.
+	 *
+	 * The discs of each player are stored in a bitboard. The box (col, row) corresponds to bit
+	 * col * (HEIGHT + 1) + row, so each column takes HEIGHT + 1 bits. The extra bit on top of each
+	 * column is always empty. It separates the columns, so that a line shifted over the board does
+	 * not wrap around from the top of one column to the bottom of the next one.
 	 */
 	
-	BoxState[][] board;
+	static final int WIDTH = 7;
+	static final int HEIGHT = 6;
+	static final int COLUMN_BITS = HEIGHT + 1;
+	
+	// Zobrist keys: KEYS[i] for a disc of X on bit i, KEYS[WIDTH * COLUMN_BITS + i] for a disc of
+	// O on bit i, and TURN_KEY for O to move
+	private static final long[] KEYS = zobristKeys("ConnectFour", 2 * WIDTH * COLUMN_BITS + 1);
+	private static final long TURN_KEY = KEYS[2 * WIDTH * COLUMN_BITS];
+	
+	long xDiscs;
+	long oDiscs;
+	int[] heights;	// The number of discs in each column
 	boolean xTurn;
-
+	
+	// The columns in which a disc was dropped by moves applied in place (-1 if no disc was
+	// dropped), most recent last. This allows ConnectFour.undoMoves to revert them.
+	private int[] history;
+	private int historySize = 0;
+	
 	public ConnectFourState(List<Player> players) {
 		super(players);
-		board = new BoxState[7][6];
+		heights = new int[WIDTH];
 		xTurn = true;
-		for (BoxState[] column : board) Arrays.fill(column, BoxState.empty);
 	}
-
+	
 	@Override
 	public State clone() {
 		ConnectFourState newState = new ConnectFourState(getPlayers());
-		for (int i = 0; i < board.length; i++) {
-			System.arraycopy(board[i], 0, newState.board[i], 0, newState.board[i].length);
-		}
-		newState.xTurn = xTurn;
+		newState.copyFrom(this);
 		return newState;
 	}
 	
+	/**
+	 * Overwrites this state with the position of the given state. The moves applied to this state
+	 * in place can no longer be undone.
+	 */
+	void copyFrom(ConnectFourState other) {
+		xDiscs = other.xDiscs;
+		oDiscs = other.oDiscs;
+		System.arraycopy(other.heights, 0, heights, 0, WIDTH);
+		xTurn = other.xTurn;
+		hash = other.hash;
+		historySize = 0;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof ConnectFourState)) return false;
+		
+		ConnectFourState other = (ConnectFourState) o;
+		return getHash() == other.getHash() && xDiscs == other.xDiscs && oDiscs == other.oDiscs
+				&& xTurn == other.xTurn && getPlayers().equals(other.getPlayers());
+	}
+	
+	/**
+	 * Drops a disc of the player whose turn it is in the given column. The column should not be
+	 * full.
+	 */
+	void drop(int col) {
+		int i = col * COLUMN_BITS + heights[col]++;
+		if (xTurn) {
+			xDiscs |= 1L << i;
+			hash ^= KEYS[i];
+		} else {
+			oDiscs |= 1L << i;
+			hash ^= KEYS[WIDTH * COLUMN_BITS + i];
+		}
+	}
+	
+	/**
+	 * Removes the highest disc from the given column.
+	 */
+	void remove(int col) {
+		int i = col * COLUMN_BITS + --heights[col];
+		if ((xDiscs & (1L << i)) != 0) {
+			xDiscs &= ~(1L << i);
+			hash ^= KEYS[i];
+		} else {
+			oDiscs &= ~(1L << i);
+			hash ^= KEYS[WIDTH * COLUMN_BITS + i];
+		}
+	}
+	
+	void passTurn() {
+		xTurn = !xTurn;
+		hash ^= TURN_KEY;
+	}
+	
+	BoxState getBox(int col, int row) {
+		long bit = 1L << (col * COLUMN_BITS + row);
+		if ((xDiscs & bit) != 0) return BoxState.X;
+		if ((oDiscs & bit) != 0) return BoxState.O;
+		return BoxState.empty;
+	}
+	
+	void pushHistory(int col) {
+		if (history == null) {
+			history = new int[WIDTH * HEIGHT];
+		} else if (historySize == history.length) {
+			history = Arrays.copyOf(history, 2 * historySize);
+		}
+		history[historySize++] = col;
+	}
+	
+	int popHistory() {
+		if (historySize == 0) throw new IllegalStateException("There are no moves to undo");
+		return history[--historySize];
+	}
+	
 	@Override
 	public String toString() {
 		String s = "=======\n";
-		for (int row = board[0].length - 1; row >= 0; row--) {
+		for (int row = HEIGHT - 1; row >= 0; row--) {
 			String line = "";
-			for (int col = 0; col < board.length; col++) {
-				switch(board[col][row]) {
+			for (int col = 0; col < WIDTH; col++) {
+				switch(getBox(col, row)) {
 				case empty:	line += " ";
 							break;
 				case X:		line += "X";
@@ -19,8 +19,11 @@ public class Flip implements StateMachine {
             moves.add(FlipMove.getNullMove(p));
         } else {
             // Return all possible moves (places which are still empty)
-            for (int i = 0; i < state.N*state.N; i++) {
-                if (state.board[i] == FlipState.BoxState.empty) {
+            for (int word = 0; word < state.white.length; word++) {
+                long empty = state.getEmpty(word);
+                while (empty != 0) {
+                    int i = 64 * word + Long.numberOfTrailingZeros(empty);
+                    empty &= empty - 1;
                     FlipMove move = new FlipMove(p, i % state.N, i / state.N);
                     moves.add(move);
                 }
@@ -32,102 +35,303 @@ public class Flip implements StateMachine {
 
     @Override
     public State getNextState(State s, Map<Player, Move> moves) throws IllegalMoveException {
+        return getNextState(s, StateMachine.toRoleMoves(s, moves));
+    }
+
+    @Override
+    public State getNextState(State s, Move[] moves) throws IllegalMoveException {
+        FlipState state = (FlipState) s.clone();
+        play(state, getMarkedCell(state, moves), false);
+        return state;
+    }
+
+    @Override
+    public State getNextState(State s, Move move) throws IllegalMoveException {
         FlipState state = (FlipState) s.clone();
+        play(state, getMarkedCell(state, move), false);
+        return state;
+    }
+
+    @Override
+    public Player getCurrentPlayer(State s) {
+        FlipState state = (FlipState) s;
         List<Player> players = state.getPlayers();
-        Player currentPlayer = state.wTurn?players.get(0):players.get(1);
+        return state.wTurn?players.get(0):players.get(1);
+    }
 
-        // Check the moves of all the players. If it is the turn of the player, the move should
-        // be on an empty cell. Else, the move should be the null move.
-        for (Player p: moves.keySet()) {
-            FlipMove m = (FlipMove) moves.get(p);
+    @Override
+    public boolean supportsUndo() {
+        return true;
+    }
 
-            if (p == currentPlayer) {
-                // It is the currentPlayer's move, so check that it is valid
-                if (m.x < 0 | m.x >= state.N | m.y < 0 | m.y >= state.N)
-                    throw new IllegalMoveException(state, m);
+    @Override
+    public void applyMoves(State s, Map<Player, Move> moves) throws IllegalMoveException {
+        applyMoves(s, StateMachine.toRoleMoves(s, moves));
+    }
 
-                int idx = m.y * state.N + m.x;
+    @Override
+    public void applyMoves(State s, Move[] moves) throws IllegalMoveException {
+        FlipState state = (FlipState) s;
+        play(state, getMarkedCell(state, moves), true);
+    }
 
-                if (state.board[idx] != BoxState.empty)
-                    throw new IllegalMoveException(state, m);
+    @Override
+    public void applyMove(State s, Move move) throws IllegalMoveException {
+        FlipState state = (FlipState) s;
+        play(state, getMarkedCell(state, move), true);
+    }
 
-                // Update board
-                state.board[idx] = state.wTurn? BoxState.W: BoxState.B;
+    @Override
+    public void undoMoves(State s) {
+        FlipState state = (FlipState) s;
+        int idx = (int) state.popHistory();
+        for (int word = state.white.length - 1; word >= 0; word--) {
+            state.flip(word, state.popHistory());
+        }
+        if (idx >= 0) state.clear(idx);
+
+        state.passTurn();
+    }
+
+    @Override
+    public boolean supportsPlayouts() {
+        return true;
+    }
+
+    @Override
+    public State copyState(State from, State to) {
+        FlipState state = (FlipState) from;
+        if (!(to instanceof FlipState) || ((FlipState) to).N != state.N
+                || to.getPlayers() != state.getPlayers()) {
+            return state.clone();
+        }
+        ((FlipState) to).copyFrom(state);
+        return to;
+    }
+
+    /**
+     * The code of a move is the index y * N + x of the cell which is marked.
+     */
+    @Override
+    public int getMoveCodes(State s, int[] codes) {
+        FlipState state = (FlipState) s;
+        int n = 0;
+        for (int word = 0; word < state.white.length; word++) {
+            long empty = state.getEmpty(word);
+            while (empty != 0) {
+                if (n < codes.length) codes[n] = 64 * word + Long.numberOfTrailingZeros(empty);
+                empty &= empty - 1;
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void applyMoveCode(State s, int code) {
+        play((FlipState) s, code, false);
+    }
+
+    /**
+     * Checks the moves for all the players, indexed by role. If it is not the player's turn, then
+     * the move should be the null move. If it is the player's turn, then the move should be 
+     * checked for validity.
+     * @return The index of the cell to be marked, or -1 if no cell is marked
+     */
+    private int getMarkedCell(FlipState state, Move[] moves) throws IllegalMoveException {
+        int currentRole = state.wTurn?0:1;
+        int idx = -1;
+
+        for (int role = 0; role < moves.length; role++) {
+            FlipMove m = (FlipMove) moves[role];
+            if (m == null) continue;
+
+            if (role == currentRole) { // it is the player's turn
+                idx = getMarkedCell(state, m);
             } else {
+                // it is not the player's turn, then check if it's the null move
                 if (m.x != -1 | m.y != -1) {
                     throw new IllegalMoveException(state, m);
                 }
             }
         }
 
-        // Flip the necessary cells
-        performFlip(state);
-
-        state.wTurn = !state.wTurn;
-
-        return state;
+        return idx;
     }
 
-    private void performFlip(FlipState state) {
-        BoxState[] newBoard = Arrays.copyOf(state.board, state.board.length);
+    /**
+     * Checks the validity of a move of the player whose turn it is.
+     * @return The index of the cell to be marked
+     */
+    private int getMarkedCell(FlipState state, Move move) throws IllegalMoveException {
+        FlipMove m = (FlipMove) move;
+        if (m.getPlayer() != getCurrentPlayer(state)) throw new IllegalMoveException(state, m);
 
-        for (int x = 0; x < state.N; x++) {
-            for (int y = 0; y < state.N; y++) {
-                BoxState currentState = getCell(state, x, y);
-                if (currentState == BoxState.empty) continue;
+        // It is the currentPlayer's move, so check that it is valid
+        if (m.x < 0 | m.x >= state.N | m.y < 0 | m.y >= state.N)
+            throw new IllegalMoveException(state, m);
 
-                BoxState opponentState = (currentState == BoxState.B)?BoxState.W:BoxState.B;
+        int idx = m.y * state.N + m.x;
 
-                int numOfOppCells = 0;
+        if (state.getCell(idx) != BoxState.empty)
+            throw new IllegalMoveException(state, m);
 
-                numOfOppCells += (getCell(state, x - 1, y - 1) == opponentState)?1:0;
-                numOfOppCells += (getCell(state, x, y - 1) == opponentState)?1:0;
-                numOfOppCells += (getCell(state, x + 1, y - 1) == opponentState)?1:0;
-                numOfOppCells += (getCell(state, x - 1, y) == opponentState)?1:0;
-                numOfOppCells += (getCell(state, x + 1, y) == opponentState)?1:0;
-                numOfOppCells += (getCell(state, x - 1, y + 1) == opponentState)?1:0;
-                numOfOppCells += (getCell(state, x, y + 1) == opponentState)?1:0;
-                numOfOppCells += (getCell(state, x + 1, y + 1) == opponentState)?1:0;
+        return idx;
+    }
 
-                if (numOfOppCells >= 3) newBoard[y * state.N + x] = opponentState;
+    /**
+     * Marks the given cell, flips the necessary cells and passes the turn.
+     * @param state The state to update
+     * @param idx The cell to mark, or -1 if no cell is marked
+     * @param record Whether to remember the changes, so that they can be reverted by undoMoves
+     */
+    private void play(FlipState state, int idx, boolean record) {
+        // Update board
+        if (idx >= 0) state.mark(idx);
+
+        // Flip the necessary cells
+        if (state.white.length == 1) {
+            long white = state.white[0];
+            long black = state.black[0];
+            long flips = (white & threeOrMoreNeighbours(black, state.N))
+                    | (black & threeOrMoreNeighbours(white, state.N));
+            state.flip(0, flips);
+            if (record) state.pushHistory(flips);
+        } else {
+            long[] flips = findFlips(state);
+            for (int word = 0; word < flips.length; word++) {
+                state.flip(word, flips[word]);
+                if (record) state.pushHistory(flips[word]);
             }
         }
+        if (record) state.pushHistory(idx);
+
+        state.passTurn();
+    }
+
+    /**
+     * Finds the cells which have at least three neighbours in the given set of cells, on a board
+     * which fits in a single word.
+     *
+     * The neighbours of cell i are the cells i +- 1, i +- (N - 1), i +- N and i +- (N + 1) which
+     * lie on the board. Shifting the set by each of these offsets gives, for every cell, whether
+     * that neighbour is in the set. These eight bits are then counted up to three in parallel.
+     */
+    static long threeOrMoreNeighbours(long cells, int N) {
+        long one = 0, two = 0, three = 0;
+        for (int k = 0; k < 4; k++) {
+            int step = (k == 0)? 1: N - 2 + k;
+            long after = cells >>> step;    // Whether cell i + step is in the set
+            long before = cells << step;    // Whether cell i - step is in the set
+            three |= two & after;
+            two |= one & after;
+            one |= after;
+            three |= two & before;
+            two |= one & before;
+            one |= before;
+        }
+        return three;
+    }
+
+    /**
+     * Finds the cells which have to be flipped on a board of more than one word: the occupied
+     * cells with at least three neighbours of the opposite colour. All cells flip simultaneously,
+     * so none of them is flipped yet.
+     * @param state The state in which to find the cells
+     * @return The mask of the cells which have to be flipped. The array is scratch space of the
+     * state, so it is only valid until the next call.
+     */
+    private long[] findFlips(FlipState state) {
+        long[][] scratch = state.getScratch(5);
+        long[] flips = scratch[0];
+        long[] three = scratch[4];
+
+        threeOrMoreNeighbours(state.black, state.N, scratch);
+        for (int word = 0; word < flips.length; word++) {
+            flips[word] = state.white[word] & three[word];
+        }
+        threeOrMoreNeighbours(state.white, state.N, scratch);
+        for (int word = 0; word < flips.length; word++) {
+            flips[word] |= state.black[word] & three[word];
+        }
 
-        state.board = newBoard;
+        return flips;
     }
 
-    private BoxState getCell (FlipState state, int x, int y) {
-        int idx = y * state.N + x;
-        if (idx < 0 | idx >= state.N * state.N) return BoxState.empty;
+    /**
+     * Same as threeOrMoreNeighbours(long, int), for a board of more than one word. The result is
+     * written into scratch[4], while scratch[1] up to scratch[3] are overwritten.
+     */
+    static void threeOrMoreNeighbours(long[] cells, int N, long[][] scratch) {
+        long[] shifted = scratch[1];
+        long[] one = scratch[2];
+        long[] two = scratch[3];
+        long[] three = scratch[4];
+        Arrays.fill(one, 0);
+        Arrays.fill(two, 0);
+        Arrays.fill(three, 0);
+
+        for (int k = 0; k < 8; k++) {
+            int step = (k < 2)? 1: N - 2 + k / 2;
+            shift(cells, (k % 2 == 0)? step: -step, shifted);
+            for (int word = 0; word < cells.length; word++) {
+                three[word] |= two[word] & shifted[word];
+                two[word] |= one[word] & shifted[word];
+                one[word] |= shifted[word];
+            }
+        }
+    }
 
-        return state.board[idx];
+    /**
+     * Shifts a multi-word set of cells, so that bit i of the result is bit i + offset of the
+     * source (or zero if that bit does not exist).
+     */
+    private static void shift(long[] src, int offset, long[] dst) {
+        int words = src.length;
+        int wordOffset = Math.abs(offset) >>> 6;
+        int bitOffset = Math.abs(offset) & 63;
+
+        for (int i = 0; i < words; i++) {
+            long value = 0;
+            if (offset >= 0) {
+                int j = i + wordOffset;
+                if (j < words) value = src[j] >>> bitOffset;
+                if (bitOffset != 0 && j + 1 < words) value |= src[j + 1] << (64 - bitOffset);
+            } else {
+                int j = i - wordOffset;
+                if (j >= 0) value = src[j] << bitOffset;
+                if (bitOffset != 0 && j - 1 >= 0) value |= src[j - 1] >>> (64 - bitOffset);
+            }
+            dst[i] = value;
+        }
     }
 
     @Override
     public boolean isTerminal(State s) {
-        return Arrays.stream(((FlipState) s).board).noneMatch(o -> o == FlipState.BoxState.empty);
+        return ((FlipState) s).getNumOfEmpty() == 0;
     }
 
     @Override
     public Map<Player, Integer> getScores(State s) {
-        FlipState state = (FlipState) s;
-        List<Player> players = s.getPlayers();
+        int[] scores = new int[2];
+        getScores(s, scores);
+        return StateMachine.toScoreMap(s, scores);
+    }
 
-        Map<Player, Integer> scores = new HashMap<>();
+    @Override
+    public void getScores(State s, int[] scores) {
+        evaluate(s, scores);
+    }
 
-        int whiteScore = (int) Arrays
-                .stream(state.board)
-                .filter(o -> o == FlipState.BoxState.W)
-                .count();
-        int blackScore = (int) Arrays
-                .stream(state.board)
-                .filter(o -> o == FlipState.BoxState.B)
-                .count();
+    @Override
+    public boolean evaluate(State s, int[] scores) {
+        FlipState state = (FlipState) s;
 
-        scores.put(players.get(0), whiteScore);
-        scores.put(players.get(1), blackScore);
+        scores[0] = state.numOfWhite;
+        scores[1] = state.numOfBlack;
 
-        return scores;
+        // The game ends once the board is full
+        return state.getNumOfEmpty() == 0;
     }
 
     @Override
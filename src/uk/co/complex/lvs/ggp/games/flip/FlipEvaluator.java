@@ -0,0 +1,105 @@
+package uk.co.complex.lvs.ggp.games.flip;
+
+import uk.co.complex.lvs.ggp.Evaluator;
+import uk.co.complex.lvs.ggp.State;
+
+/**
+ * Evaluates Flip states by material and stability. The score of a player is the number of cells
+ * in its colour at the end of the game, so the cells which it has now count fully. Of the empty
+ * cells, every player gets the ones which it will mark itself: the players take turns, so the
+ * player to move marks the larger half. Every stable cell of a player is taken to be worth half a
+ * cell more, and every stable cell of the opponent half a cell less.
+ *
+ * A cell is stable if no sequence of moves can ever flip it. A cell flips once it has three
+ * neighbours of the opposite colour, and any neighbour which is empty, of the opposite colour or
+ * of the same colour but not stable itself may become of the opposite colour. The stable cells are
+ * therefore found as a fixed point: starting from all cells of a player, the cells which have at
+ * least three neighbours outside the set are removed until none are left to remove. The remaining
+ * cells have at most two neighbours which can ever change colour, so they can never be flipped.
+ *
+ * Every step uses the same bitset operations which Flip uses to find the cells to flip. On boards
+ * of more than one word, they use the scratch space of the state, so a state should only be
+ * evaluated by the thread which plays on it.
+ * @author Lex van der Stoep
+ */
+public class FlipEvaluator implements Evaluator {
+    @Override
+    public int evaluate(State s, int role) {
+        FlipState state = (FlipState) s;
+        int ownStable, oppStable;
+        if (state.white.length == 1) {
+            long board = state.white[0] | state.black[0] | state.getEmpty(0);
+            ownStable = Long.bitCount(findStable(state.white[0], board, state.N));
+            oppStable = Long.bitCount(findStable(state.black[0], board, state.N));
+        } else {
+            ownStable = countStable(state, state.white);
+            oppStable = countStable(state, state.black);
+        }
+
+        // The counts above are from the perspective of white
+        int own = state.numOfWhite;
+        if (role != 0) {
+            own = state.numOfBlack;
+            int stable = ownStable;
+            ownStable = oppStable;
+            oppStable = stable;
+        }
+
+        int empty = state.getNumOfEmpty();
+        int marks = ((role == 0) == state.wTurn) ? (empty + 1) / 2 : empty / 2;
+        int value = own + marks + (ownStable - oppStable) / 2;
+        return Math.max(0, Math.min(state.N * state.N, value));
+    }
+
+    /**
+     * Finds the stable cells of a player on a board which fits in a single word.
+     * @param cells The cells of the player
+     * @param board The cells of the board
+     * @param N The size of the board
+     * @return The cells of the player which can never be flipped
+     */
+    private static long findStable(long cells, long board, int N) {
+        long stable = cells;
+        while (true) {
+            long unstable = stable & Flip.threeOrMoreNeighbours(board & ~stable, N);
+            if (unstable == 0) return stable;
+            stable &= ~unstable;
+        }
+    }
+
+    /**
+     * Counts the stable cells of a player on a board of more than one word.
+     * @param state The state whose scratch space is used
+     * @param cells The cells of the player
+     * @return The number of cells of the player which can never be flipped
+     */
+    private static int countStable(FlipState state, long[] cells) {
+        long[][] scratch = state.getScratch(6);
+        long[] stable = scratch[0];
+        long[] threats = scratch[5];
+        long[] three = scratch[4];
+        System.arraycopy(cells, 0, stable, 0, cells.length);
+
+        boolean changed = true;
+        while (changed) {
+            for (int word = 0; word < cells.length; word++) {
+                long board = state.white[word] | state.black[word] | state.getEmpty(word);
+                threats[word] = board & ~stable[word];
+            }
+            Flip.threeOrMoreNeighbours(threats, state.N, scratch);
+
+            changed = false;
+            for (int word = 0; word < cells.length; word++) {
+                long unstable = stable[word] & three[word];
+                if (unstable != 0) changed = true;
+                stable[word] &= ~unstable;
+            }
+        }
+
+        int count = 0;
+        for (long word : stable) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+}
@@ -17,6 +17,19 @@ public class FlipMove extends Move {
         return new FlipMove(player, -1, -1);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FlipMove)) return false;
+
+        FlipMove other = (FlipMove) o;
+        return x == other.x && y == other.y && getPlayer() == other.getPlayer();
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * getPlayer().hashCode() + x) + y;
+    }
+
     @Override
     public String toString() {
         return "(" + getPlayer().getName() + "): (" + x + ", " + y + ")";
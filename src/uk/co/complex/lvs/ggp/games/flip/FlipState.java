@@ -16,28 +16,181 @@ public class FlipState extends State {
      * -----------------...-----------
      *
      * The first player is white, the second player is black.
+     *
+     * The cells of each colour are stored as a bitset over the cell indices y * N + x, which is
+     * split into 64-bit words: cell i is bit i % 64 of word i / 64. For N <= 8 the whole board
+     * fits in a single word per colour.
      */
 
-    BoxState[] board;
+    long[] white;
+    long[] black;
+    int numOfWhite = 0;     // The number of cells in white
+    int numOfBlack = 0;     // The number of cells in black
     boolean wTurn;
     final int N;
+    final long lastWordMask;    // The bits of the last word which correspond to cells
+
+    // Zobrist keys: keys[i] for cell i in white, keys[N * N + i] for cell i in black, and
+    // keys[2 * N * N] for black to move. They are shared by all states of the same game.
+    private final long[] keys;
+
+    // For every move applied in place: the words of the mask of flipped cells, followed by the
+    // marked cell (-1 if no cell was marked), most recent last. This allows Flip.undoMoves to
+    // revert them.
+    private long[] history;
+    private int historySize = 0;
+
+    // Scratch space used by Flip and FlipEvaluator on boards of more than one word
+    private long[][] scratch;
 
     public FlipState(List<Player> players, int N) {
+        this(players, N, zobristKeys("Flip " + N, 2 * N * N + 1));
+    }
+
+    private FlipState(List<Player> players, int N, long[] keys) {
         super(players);
-        board = new BoxState[N*N];
+        this.keys = keys;
+        int numOfWords = Math.max(1, (N * N + 63) / 64);
+        white = new long[numOfWords];
+        black = new long[numOfWords];
         wTurn = true;
         this.N = N;
-        Arrays.fill(board, BoxState.empty);
+
+        int bitsInLastWord = N * N - 64 * (numOfWords - 1);
+        lastWordMask = (bitsInLastWord == 64) ? -1L : (1L << bitsInLastWord) - 1;
     }
 
     @Override
     public State clone() {
-        FlipState newState = new FlipState(getPlayers(), N);
-        System.arraycopy(board, 0, newState.board, 0, board.length);
-        newState.wTurn = wTurn;
+        FlipState newState = new FlipState(getPlayers(), N, keys);
+        newState.copyFrom(this);
         return newState;
     }
 
+    /**
+     * Overwrites this state with the position of the given state, which should have the same
+     * size. The moves applied to this state in place can no longer be undone.
+     */
+    void copyFrom(FlipState other) {
+        System.arraycopy(other.white, 0, white, 0, white.length);
+        System.arraycopy(other.black, 0, black, 0, black.length);
+        numOfWhite = other.numOfWhite;
+        numOfBlack = other.numOfBlack;
+        wTurn = other.wTurn;
+        hash = other.hash;
+        historySize = 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FlipState)) return false;
+
+        FlipState other = (FlipState) o;
+        return getHash() == other.getHash() && N == other.N && wTurn == other.wTurn
+                && Arrays.equals(white, other.white) && Arrays.equals(black, other.black)
+                && getPlayers().equals(other.getPlayers());
+    }
+
+    /**
+     * @return The bits of the given word which correspond to empty cells
+     */
+    long getEmpty(int word) {
+        long mask = (word == white.length - 1) ? lastWordMask : -1L;
+        return ~(white[word] | black[word]) & mask;
+    }
+
+    /**
+     * @return The number of empty cells
+     */
+    int getNumOfEmpty() {
+        return N * N - numOfWhite - numOfBlack;
+    }
+
+    /**
+     * Marks the given empty cell with the colour of the player whose turn it is.
+     */
+    void mark(int idx) {
+        long bit = 1L << idx;
+        if (wTurn) {
+            white[idx >>> 6] |= bit;
+            numOfWhite++;
+            hash ^= keys[idx];
+        } else {
+            black[idx >>> 6] |= bit;
+            numOfBlack++;
+            hash ^= keys[N * N + idx];
+        }
+    }
+
+    /**
+     * Clears the given cell, which should not be empty.
+     */
+    void clear(int idx) {
+        long bit = 1L << idx;
+        if ((white[idx >>> 6] & bit) != 0) {
+            white[idx >>> 6] &= ~bit;
+            numOfWhite--;
+            hash ^= keys[idx];
+        } else {
+            black[idx >>> 6] &= ~bit;
+            numOfBlack--;
+            hash ^= keys[N * N + idx];
+        }
+    }
+
+    void passTurn() {
+        wTurn = !wTurn;
+        hash ^= keys[2 * N * N];
+    }
+
+    /**
+     * Flips the occupied cells in the given mask of the given word.
+     */
+    void flip(int word, long flips) {
+        int whiteToBlack = Long.bitCount(white[word] & flips);
+        int blackToWhite = Long.bitCount(flips) - whiteToBlack;
+        white[word] ^= flips;
+        black[word] ^= flips;
+        numOfWhite += blackToWhite - whiteToBlack;
+        numOfBlack += whiteToBlack - blackToWhite;
+
+        // Every flipped cell loses the key of its old colour and gains the key of its new colour
+        while (flips != 0) {
+            int idx = 64 * word + Long.numberOfTrailingZeros(flips);
+            flips &= flips - 1;
+            hash ^= keys[idx] ^ keys[N * N + idx];
+        }
+    }
+
+    BoxState getCell(int idx) {
+        long bit = 1L << idx;
+        if ((white[idx >>> 6] & bit) != 0) return BoxState.W;
+        if ((black[idx >>> 6] & bit) != 0) return BoxState.B;
+        return BoxState.empty;
+    }
+
+    void pushHistory(long value) {
+        if (history == null) {
+            history = new long[N * N * (white.length + 1)];
+        } else if (historySize == history.length) {
+            history = Arrays.copyOf(history, 2 * historySize);
+        }
+        history[historySize++] = value;
+    }
+
+    long popHistory() {
+        if (historySize == 0) throw new IllegalStateException("There are no moves to undo");
+        return history[--historySize];
+    }
+
+    long[][] getScratch(int numOfArrays) {
+        if (scratch == null || scratch.length < numOfArrays) {
+            scratch = new long[numOfArrays][white.length];
+        }
+        return scratch;
+    }
+
     @Override
     public String toString() {
         char[] chars = new char[N];
@@ -48,7 +201,7 @@ public class FlipState extends State {
                 s += "\n";
             }
             String b = "";
-            switch(board[i]) {
+            switch(getCell(i)) {
                 case empty: b = "-";
                     break;
                 case B:		b = "B";
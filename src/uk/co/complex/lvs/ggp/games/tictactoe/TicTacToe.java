@@ -1,7 +1,6 @@
 package uk.co.complex.lvs.ggp.games.tictactoe;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -12,6 +11,38 @@ public class TicTacToe implements StateMachine {
 	private final int winScore = 100;
 	private final int loseScore = -100;
 	private final int drawScore = 0;
+	
+	// The boxes of each line of three: the horizontal lines, vertical lines and diagonals
+	private static final int[][] LINES = {{0, 1, 2}, {3, 4, 5}, {6, 7, 8},
+										  {0, 3, 6}, {1, 4, 7}, {2, 5, 8},
+										  {0, 4, 8}, {2, 4, 6}};
+	
+	/* The marks of a player and the empty boxes are sets of boxes, stored as 9-bit masks (see 
+	 * TicTacToeState). There are only 512 such sets, so everything the state machine needs to 
+	 * know about them is computed once, when the class is loaded.
+	 */
+	private static final int NUM_OF_SETS = 1 << 9;
+	
+	// For each set of boxes, whether it contains three in a row
+	private static final boolean[] HAS_LINE = new boolean[NUM_OF_SETS];
+	
+	// For each set of boxes, the indices of the boxes in increasing order
+	private static final int[][] BOXES = new int[NUM_OF_SETS][];
+	
+	static {
+		for (int set = 0; set < NUM_OF_SETS; set++) {
+			for (int[] line : LINES) {
+				int lineSet = (1 << line[0]) | (1 << line[1]) | (1 << line[2]);
+				if ((set & lineSet) == lineSet) HAS_LINE[set] = true;
+			}
+			
+			BOXES[set] = new int[Integer.bitCount(set)];
+			int i = 0;
+			for (int box = 0; box < 9; box++) {
+				if ((set & (1 << box)) != 0) BOXES[set][i++] = box;
+			}
+		}
+	}
 
 	@Override
 	public List<Move> getMoves(State s, Player p) {
@@ -27,11 +58,9 @@ public class TicTacToe implements StateMachine {
 			moves.add(move);
 		} else {
 			// Return all possible moves (places which are still empty)
-			for (int i = 0; i < 9; i++) {
-				if (state.board[i] == BoxState.empty) {
-					TicTacToeMove move = new TicTacToeMove(p, i);
-					moves.add(move);
-				}
+			for (int box : BOXES[state.getEmptyBoxes()]) {
+				TicTacToeMove move = new TicTacToeMove(p, box);
+				moves.add(move);
 			}
 		}
 		
@@ -40,94 +69,186 @@ public class TicTacToe implements StateMachine {
 
 	@Override
 	public State getNextState(State s, Map<Player, Move> moves) throws IllegalMoveException {
-		TicTacToeState state = ( TicTacToeState) s.clone();
+		return getNextState(s, StateMachine.toRoleMoves(s, moves));
+	}
+	
+	@Override
+	public State getNextState(State s, Move[] moves) throws IllegalMoveException {
+		TicTacToeState state = ((TicTacToeState) s).clone();
+		play(state, getMarkedBox(state, moves));
+		return state;
+	}
+	
+	@Override
+	public State getNextState(State s, Move move) throws IllegalMoveException {
+		TicTacToeState state = ((TicTacToeState) s).clone();
+		play(state, getMarkedBox(state, move));
+		return state;
+	}
+	
+	@Override
+	public Player getCurrentPlayer(State s) {
+		TicTacToeState state = (TicTacToeState) s;
 		List<Player> players = state.getPlayers();
-		Player currentPlayer = state.xTurn?players.get(0):players.get(1);
+		return state.xTurn?players.get(0):players.get(1);
+	}
+	
+	@Override
+	public boolean supportsUndo() {
+		return true;
+	}
+	
+	@Override
+	public void applyMoves(State s, Map<Player, Move> moves) throws IllegalMoveException {
+		applyMoves(s, StateMachine.toRoleMoves(s, moves));
+	}
+	
+	@Override
+	public void applyMoves(State s, Move[] moves) throws IllegalMoveException {
+		TicTacToeState state = (TicTacToeState) s;
+		int idx = getMarkedBox(state, moves);
+		play(state, idx);
+		state.pushHistory(idx);
+	}
+	
+	@Override
+	public void applyMove(State s, Move move) throws IllegalMoveException {
+		TicTacToeState state = (TicTacToeState) s;
+		int idx = getMarkedBox(state, move);
+		play(state, idx);
+		state.pushHistory(idx);
+	}
+	
+	@Override
+	public void undoMoves(State s) {
+		TicTacToeState state = (TicTacToeState) s;
+		int idx = state.popHistory();
+		if (idx >= 0) state.clear(idx);
+		state.passTurn();
+	}
+	
+	@Override
+	public boolean supportsPlayouts() {
+		return true;
+	}
+	
+	@Override
+	public State copyState(State from, State to) {
+		TicTacToeState state = (TicTacToeState) from;
+		if (!(to instanceof TicTacToeState) || to.getPlayers() != state.getPlayers()) {
+			return state.clone();
+		}
+		((TicTacToeState) to).copyFrom(state);
+		return to;
+	}
+	
+	/**
+	 * The code of a move is the index of the box which is marked.
+	 */
+	@Override
+	public int getMoveCodes(State s, int[] codes) {
+		int[] boxes = BOXES[((TicTacToeState) s).getEmptyBoxes()];
+		System.arraycopy(boxes, 0, codes, 0, Math.min(boxes.length, codes.length));
+		return boxes.length;
+	}
+	
+	@Override
+	public void applyMoveCode(State s, int code) {
+		play((TicTacToeState) s, code);
+	}
+	
+	/**
+	 * Checks the moves for all the players, indexed by role. If it is not the player's turn, then
+	 * the move should be the null move. If it is the player's turn, then the move should be 
+	 * checked for validity.
+	 * @return The index of the box to be marked, or -1 if no box is marked
+	 */
+	private int getMarkedBox(TicTacToeState state, Move[] moves) throws IllegalMoveException {
+		int currentRole = state.xTurn?0:1;
+		int idx = -1;
 		
-		// Check the moves for all the players. If it is not the player's turn, then the move 
-		// should be the null move. If it is the player's turn, then the move should be 
-		// checked for validity.
-		for (Player p: moves.keySet()) {
-			TicTacToeMove m = (TicTacToeMove) moves.get(p);
+		for (int role = 0; role < moves.length; role++) {
+			TicTacToeMove m = (TicTacToeMove) moves[role];
+			if (m == null) continue;
 			
-			if (p == currentPlayer) { // it is the player's turn
-				// Check if the box selected as the move is empty
-				if (m.index < 0 | m.index > 8) throw new IllegalMoveException(state, m);
-				
-				if (state.board[m.index] != BoxState.empty) throw new IllegalMoveException(state, m);
-				
-				// Update the board
-				state.board[m.index] = state.xTurn?BoxState.X:BoxState.O;
+			if (role == currentRole) { // it is the player's turn
+				idx = getMarkedBox(state, m);
 			} else {
-				// it is not the player's turn, then check if it's null move
+				// it is not the player's turn, then check if it's the null move
 				if (m.index != -1) {
 					throw new IllegalMoveException(state, m);
 				}
 			}
 		}
 		
-		// Change who's turn it is
-		state.xTurn = !state.xTurn;
+		return idx;
+	}
+	
+	/**
+	 * Checks the validity of a move of the player whose turn it is.
+	 * @return The index of the box to be marked
+	 */
+	private int getMarkedBox(TicTacToeState state, Move move) throws IllegalMoveException {
+		TicTacToeMove m = (TicTacToeMove) move;
+		if (m.getPlayer() != getCurrentPlayer(state)) throw new IllegalMoveException(state, m);
 		
-		return state;
+		// Check if the box selected as the move is empty
+		if (m.index < 0 | m.index > 8) throw new IllegalMoveException(state, m);
+		
+		if ((state.getEmptyBoxes() & (1 << m.index)) == 0) throw new IllegalMoveException(state, m);
+		
+		return m.index;
+	}
+	
+	private void play(TicTacToeState state, int idx) {
+		// Update the board
+		if (idx >= 0) state.mark(idx);
+		
+		// Change who's turn it is
+		state.passTurn();
 	}
 
 	@Override
 	public boolean isTerminal(State s) {
 		TicTacToeState state = (TicTacToeState) s;
 		
-		Map<Player, Integer> scores = getScores(state);
-		List<Player> players = state.getPlayers();
-		
-		// If any of the scores is not the draw score, then it is a terminal state
-		if (scores.get(players.get(0)) != drawScore) return true;
-		if (scores.get(players.get(1)) != drawScore) return true;
-		
-		// Check if there is an empty box
-		for (int i = 0; i < 9; i++) {
-			if (state.board[i] == BoxState.empty) return false;
-		}
-		
-		return true;
+		// If any player has three in a row or if the board is full, then it is a terminal state
+		return getWinner(state) != BoxState.empty || isFull(state);
 	}
 
 	@Override
 	public Map<Player, Integer> getScores(State s) {
+		int[] scores = new int[2];
+		getScores(s, scores);
+		return StateMachine.toScoreMap(s, scores);
+	}
+	
+	@Override
+	public void getScores(State s, int[] scores) {
+		evaluate(s, scores);
+	}
+	
+	@Override
+	public boolean evaluate(State s, int[] scores) {
 		TicTacToeState state = (TicTacToeState) s;
-		List<Player> players = s.getPlayers();
-		
-		Map<Player, Integer> scores = new HashMap<>();
-		scores.put(players.get(0), drawScore);
-		scores.put(players.get(1), drawScore);
-
-		BoxState[] winner = new BoxState[8];
-		
-		// Check horizontal lines
-		winner[0] = checkWinner(state, 0, 1, 2);
-		winner[1] = checkWinner(state, 3, 4, 5);
-		winner[2] = checkWinner(state, 6, 7, 8);
-		// Check vertical lines
-		winner[3] = checkWinner(state, 0, 3, 6);
-		winner[4] = checkWinner(state, 1, 4, 7);
-		winner[5] = checkWinner(state, 2, 5, 8);
-		// Check diagonals
-		winner[6] = checkWinner(state, 0, 4, 8);
-		winner[7] = checkWinner(state, 2, 4, 6);
+		BoxState winner = getWinner(state);
 		
 		// Check if any player had three in a row
-		for (int i = 0; i < winner.length; i++) {
-			if (winner[i] == BoxState.X) {
-				scores.put(players.get(0), winScore);
-				scores.put(players.get(1), loseScore);
-			} else if (winner[i] == BoxState.O) {
-				scores.put(players.get(0), loseScore);
-				scores.put(players.get(1), winScore);
-			}
+		if (winner == BoxState.X) {
+			scores[0] = winScore;
+			scores[1] = loseScore;
+			return true;
+		} else if (winner == BoxState.O) {
+			scores[0] = loseScore;
+			scores[1] = winScore;
+			return true;
 		}
 		
-		return scores;
+		scores[0] = drawScore;
+		scores[1] = drawScore;
+		return isFull(state);
 	}
-
+	
 	@Override
 	public State getInitialState(List<Player> players) {
 		if (players.size() != 2) throw new IllegalArgumentException("Tic Tac Toe requires exactly "
@@ -136,22 +257,17 @@ public class TicTacToe implements StateMachine {
 		return initialState;
 	}
 	
-	private BoxState checkWinner(TicTacToeState state, int idx1, int idx2, int idx3) {
-		// Checks whether the three given indices are all occupied by one player.
-		// If so, return that player. Else, return empty.
-		
-		int Xs = 0;
-		int Os = 0;
-		
-		if (state.board[idx1] == BoxState.X) Xs++;
-		if (state.board[idx1] == BoxState.O) Os++;
-		if (state.board[idx2] == BoxState.X) Xs++;
-		if (state.board[idx2] == BoxState.O) Os++;
-		if (state.board[idx3] == BoxState.X) Xs++;
-		if (state.board[idx3] == BoxState.O) Os++;
-		
-		if (Xs == 3) return BoxState.X;
-		if (Os == 3) return BoxState.O;
+	/**
+	 * Finds the player who has three in a row, if any.
+	 * @return X or O if that player has three in a row, empty otherwise
+	 */
+	private BoxState getWinner(TicTacToeState state) {
+		if (HAS_LINE[state.xMarks]) return BoxState.X;
+		if (HAS_LINE[state.oMarks]) return BoxState.O;
 		return BoxState.empty;
 	}
+	
+	private boolean isFull(TicTacToeState state) {
+		return state.getEmptyBoxes() == 0;
+	}
 }
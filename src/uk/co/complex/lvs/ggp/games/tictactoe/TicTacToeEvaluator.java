@@ -0,0 +1,48 @@
+package uk.co.complex.lvs.ggp.games.tictactoe;
+
+import uk.co.complex.lvs.ggp.Evaluator;
+import uk.co.complex.lvs.ggp.State;
+
+/**
+ * Evaluates Tic-tac-toe states by the lines which are still open. A line in which only one of the
+ * players has marks can still be completed by that player, and it is worth more the more marks it
+ * has. If the player to move has two marks in an open line, then that player wins next move.
+ * @author Lex van der Stoep
+ */
+public class TicTacToeEvaluator implements Evaluator {
+	// The value of an open line, indexed by the number of marks in it
+	private static final int[] LINE_VALUES = {0, 1, 10};
+	private static final int WIN_VALUE = 90;	// The value of a line which the player to move can
+												// complete right away
+	private static final int MAX_VALUE = 99;	// Just below the score of a win
+
+	// The boxes of each line of three, as 9-bit masks (see TicTacToeState)
+	private static final int[] LINES = {0007, 0070, 0700, 0111, 0222, 0444, 0421, 0124};
+
+	@Override
+	public int evaluate(State s, int role) {
+		TicTacToeState state = (TicTacToeState) s;
+		int mover = state.xTurn ? state.xMarks : state.oMarks;
+		int waiter = state.xTurn ? state.oMarks : state.xMarks;
+
+		int value = 0;
+		for (int line : LINES) {
+			int mine = Integer.bitCount(mover & line);
+			int theirs = Integer.bitCount(waiter & line);
+			if (theirs == 0) {
+				if (mine == 2) {
+					value = WIN_VALUE;
+					break;
+				}
+				value += LINE_VALUES[mine];
+			} else if (mine == 0) {
+				value -= LINE_VALUES[theirs];
+			}
+		}
+		value = Math.max(-MAX_VALUE, Math.min(MAX_VALUE, value));
+
+		// The value is from the perspective of the player to move
+		boolean xRole = (role == 0);
+		return (xRole == state.xTurn) ? value : -value;
+	}
+}
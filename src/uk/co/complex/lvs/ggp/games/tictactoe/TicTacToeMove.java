@@ -15,4 +15,17 @@ public class TicTacToeMove extends Move {
 	public static TicTacToeMove getNullMove(Player player) {
 		return new TicTacToeMove(player, -1);
 	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TicTacToeMove)) return false;
+		
+		TicTacToeMove other = (TicTacToeMove) o;
+		return index == other.index && getPlayer() == other.getPlayer();
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * getPlayer().hashCode() + index;
+	}
 }
\ No newline at end of file
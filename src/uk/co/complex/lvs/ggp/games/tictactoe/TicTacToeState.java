@@ -17,26 +17,119 @@ public class TicTacToeState extends State{
 	 * -------
 	 * 
 	 * The first player is X, the second player is O.
+	 * 
+	 * The marks of each player are stored as a 9-bit mask, in which bit i is set iff the player
+	 * has marked box i.
 	 */
 	
-	BoxState[] board;
+	static final int ALL_BOXES = (1 << 9) - 1;
+	
+	// Zobrist keys: KEYS[i] for a mark of X in box i, KEYS[9 + i] for a mark of O in box i, and
+	// TURN_KEY for O to move
+	private static final long[] KEYS = zobristKeys("TicTacToe", 19);
+	private static final long TURN_KEY = KEYS[18];
+	
+	int xMarks;
+	int oMarks;
 	boolean xTurn;
 	
+	// The boxes marked by moves applied in place (-1 if no box was marked), most recent last.
+	// This allows TicTacToe.undoMoves to revert them.
+	private int[] history;
+	private int historySize = 0;
+	
 	public TicTacToeState(List<Player> players) {
 		super(players);
-		board = new BoxState[9];
 		xTurn = true;
-		Arrays.fill(board, BoxState.empty);
 	}
 	
 	@Override
 	public TicTacToeState clone() {
 		TicTacToeState newState = new TicTacToeState(getPlayers());
-		System.arraycopy(board, 0, newState.board, 0, board.length);
-		newState.xTurn = xTurn;
+		newState.copyFrom(this);
 		return newState;
 	}
 	
+	/**
+	 * Overwrites this state with the position of the given state. The moves applied to this state
+	 * in place can no longer be undone.
+	 */
+	void copyFrom(TicTacToeState other) {
+		xMarks = other.xMarks;
+		oMarks = other.oMarks;
+		xTurn = other.xTurn;
+		hash = other.hash;
+		historySize = 0;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof TicTacToeState)) return false;
+		
+		TicTacToeState other = (TicTacToeState) o;
+		return getHash() == other.getHash() && xMarks == other.xMarks && oMarks == other.oMarks
+				&& xTurn == other.xTurn && getPlayers().equals(other.getPlayers());
+	}
+	
+	/**
+	 * @return The 9-bit mask of the boxes which have not been marked yet
+	 */
+	int getEmptyBoxes() {
+		return ALL_BOXES & ~(xMarks | oMarks);
+	}
+	
+	/**
+	 * Marks the given empty box for the player whose turn it is.
+	 */
+	void mark(int idx) {
+		if (xTurn) {
+			xMarks |= 1 << idx;
+			hash ^= KEYS[idx];
+		} else {
+			oMarks |= 1 << idx;
+			hash ^= KEYS[9 + idx];
+		}
+	}
+	
+	/**
+	 * Clears the given box, which should be marked.
+	 */
+	void clear(int idx) {
+		if ((xMarks & (1 << idx)) != 0) {
+			xMarks &= ~(1 << idx);
+			hash ^= KEYS[idx];
+		} else {
+			oMarks &= ~(1 << idx);
+			hash ^= KEYS[9 + idx];
+		}
+	}
+	
+	void passTurn() {
+		xTurn = !xTurn;
+		hash ^= TURN_KEY;
+	}
+	
+	BoxState getBox(int idx) {
+		if ((xMarks & (1 << idx)) != 0) return BoxState.X;
+		if ((oMarks & (1 << idx)) != 0) return BoxState.O;
+		return BoxState.empty;
+	}
+	
+	void pushHistory(int idx) {
+		if (history == null) {
+			history = new int[9];
+		} else if (historySize == history.length) {
+			history = Arrays.copyOf(history, 2 * historySize);
+		}
+		history[historySize++] = idx;
+	}
+	
+	int popHistory() {
+		if (historySize == 0) throw new IllegalStateException("There are no moves to undo");
+		return history[--historySize];
+	}
+	
 	@Override
 	public String toString() {
 		String s = "==========\n";
@@ -45,7 +138,7 @@ public class TicTacToeState extends State{
 				s += "\n";
 			}
 			String b = "";
-			switch(board[i]) {
+			switch(getBox(i)) {
 			case empty: b = "-";
 						break;
 			case X:		b = "X";
@@ -1,10 +1,8 @@
 package uk.co.complex.lvs.ggp.players;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 
+import uk.co.complex.lvs.ggp.Evaluator;
 import uk.co.complex.lvs.ggp.IllegalMoveException;
 import uk.co.complex.lvs.ggp.Move;
 import uk.co.complex.lvs.ggp.Player;
@@ -16,18 +14,93 @@ import uk.co.complex.lvs.ggp.StateMachine;
  * game tree and determine its next move. However, the difference is that the FixedDepthPlayer
  * stops searching (meaning it does not search any deeper) the game tree once it has reached a certain
  * fixed depth. At that point, a value is given to the current state by evaluating the state with
- * some heuristic function.
+ * some heuristic function: either random walks, or an Evaluator of the game if one is given.
  * @author Lex van der Stoep
  */
 public class FixedDepthPlayer extends Player {
 	private static final int MAX_DEPTH = 2;
-	private static final int NUM_OF_WALKS = 10;
+	private static final int DEFAULT_NUM_OF_WALKS = 10;
+	private static final int ASPIRATION_WINDOW = 10;	// The initial distance of the bounds of the
+														// aspiration window from its centre
 
 	private Move move;
-	private Random rnd = new Random();
+	private final RandomWalks walks;	// The random walks of phi, null if it uses the evaluator
+	private final Evaluator evaluator;	// The evaluator of phi, null if it uses random walks
+	private boolean inPlace;	// True iff the moves are applied to a single state in place
+	private int role;			// The index of this player in the list of players
+	private final SearchMode searchMode;
+	private long numOfNodes;	// The number of states visited by the last search
+	private int depth;			// The depth of the current search: MAX_DEPTH, or one less for the
+								// search which finds the centre of the aspiration window
+	
+	// Buffers for the joint moves and scores, indexed by role
+	private final Move[] jointMoves = new Move[2];
+	private final int[] scores = new int[2];
 	
 	public FixedDepthPlayer(String name) {
+		this(name, SearchMode.ALPHA_BETA);
+	}
+	
+	public FixedDepthPlayer(String name, SearchMode searchMode) {
+		this(name, searchMode, DEFAULT_NUM_OF_WALKS, false);
+	}
+	
+	/**
+	 * Creates a FixedDepthPlayer with the given number of random walks in its heuristic.
+	 * @param name The name of the player
+	 * @param searchMode The search algorithm
+	 * @param numOfWalks The number of random walks from every state which is evaluated
+	 * @param parallelWalks True iff the walks of a state run in parallel
+	 */
+	public FixedDepthPlayer(String name, SearchMode searchMode, int numOfWalks,
+			boolean parallelWalks) {
+		this(name, searchMode, numOfWalks, numOfWalks, 0, parallelWalks);
+	}
+	
+	/**
+	 * Creates a FixedDepthPlayer whose heuristic adapts the number of random walks to their
+	 * scores. After minWalks walks, the walks of a state stop as soon as the 95% confidence
+	 * interval of their mean is at most precision wide on either side, or lies outside the
+	 * alpha-beta window.
+	 * @param name The name of the player
+	 * @param searchMode The search algorithm
+	 * @param minWalks The minimum number of random walks from every state which is evaluated
+	 * @param maxWalks The maximum number of random walks from every state which is evaluated
+	 * @param precision The half-width of the confidence interval at which the walks stop
+	 * @param parallelWalks True iff the walks of a state run in parallel
+	 */
+	public FixedDepthPlayer(String name, SearchMode searchMode, int minWalks, int maxWalks,
+			int precision, boolean parallelWalks) {
+		this(name, searchMode, new RandomWalks(minWalks, maxWalks, precision, parallelWalks),
+				null);
+	}
+	
+	/**
+	 * Creates a FixedDepthPlayer whose heuristic is a static evaluation of the state, rather than
+	 * random walks. The evaluator must belong to the game which the player plays.
+	 * @param name The name of the player
+	 * @param searchMode The search algorithm
+	 * @param evaluator The evaluator of the states at the maximum depth
+	 */
+	public FixedDepthPlayer(String name, SearchMode searchMode, Evaluator evaluator) {
+		this(name, searchMode, null, evaluator);
+		if (evaluator == null) throw new IllegalArgumentException("The evaluator should not be "
+				+ "null.");
+	}
+	
+	private FixedDepthPlayer(String name, SearchMode searchMode, RandomWalks walks,
+			Evaluator evaluator) {
 		super(name);
+		this.searchMode = searchMode;
+		this.walks = walks;
+		this.evaluator = evaluator;
+	}
+	
+	/**
+	 * @return The number of states visited by the last search
+	 */
+	public long getNumOfNodes() {
+		return numOfNodes;
 	}
 
 	@Override
@@ -36,15 +109,60 @@ public class FixedDepthPlayer extends Player {
 		if (players.size() != 2) throw new IllegalArgumentException("The HeuristicPlayer was "
 				+ "implemented for a two-player game.");
 		
+		role = s.getRole(this);
+		
 		// If there is only one legal move available, choose that one.
 		List<Move> moves = m.getMoves(s, this);
 		if (moves.size() == 1) return moves.get(0);
 		
+		// Search on a private copy of the state if the moves can be applied in place
+		inPlace = m.supportsUndo();
+		State state = inPlace ? s.clone() : s;
+		
 		// Run the Minimax algorithm to determine move
-		maximin(s, m, Integer.MAX_VALUE, 0); //this sets move
+		numOfNodes = 0;
+		if (searchMode == SearchMode.PVS) {
+			// The aspiration window is centred on the value of a shallower search of the same
+			// state, which is cheap compared to the full search
+			depth = MAX_DEPTH - 1;
+			int guess = maximin(state, m, Integer.MIN_VALUE, Integer.MAX_VALUE, 0);
+			depth = MAX_DEPTH;
+			aspirationSearch(state, m, guess); //this sets move
+		} else {
+			depth = MAX_DEPTH;
+			maximin(state, m, Integer.MIN_VALUE, Integer.MAX_VALUE, 0);
+		}
 		return move;
 	}
 	
+	/**
+	 * Searches the root with an aspiration window: a small window around the expected value,
+	 * which prunes more than the full window. If the value turns out to lie outside the window,
+	 * the window is widened on that side and the root is searched again.
+	 * @param guess The expected value of the root
+	 * @return The value of the root
+	 */
+	private int aspirationSearch(State s, StateMachine m, int guess) {
+		long delta = ASPIRATION_WINDOW;
+		int alpha = clamp(guess - delta);
+		int beta = clamp(guess + delta);
+		while (true) {
+			int value = maximin(s, m, alpha, beta, 0);
+			if (value <= alpha && alpha != Integer.MIN_VALUE) {
+				alpha = clamp(value - delta);
+			} else if (value >= beta && beta != Integer.MAX_VALUE) {
+				beta = clamp(value + delta);
+			} else {
+				return value;
+			}
+			delta *= 2;
+		}
+	}
+	
+	private static int clamp(long value) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+	}
+	
 	/**
 	 * Uses the Minimax algorithm to calculate the maximum guaranteed score that can be achieved by
 	 * this player. For that, it makes the pessimistic assumption that the opponent will try to
@@ -52,10 +170,12 @@ public class FixedDepthPlayer extends Player {
 	 * Once the algorithm reaches a certain search depth, the search is terminated (does not go any
 	 * deeper). The value given to the current state is determined by some heuristic function.
 	 */
-	private int maximin(State s, StateMachine m, int beta, int currentDepth) {
+	private int maximin(State s, StateMachine m, int alpha, int beta, int currentDepth) {
+		numOfNodes++;
+		
 		// If the current state is terminal, return its value
-		if (m.isTerminal(s)) {
-			return m.getScores(s).get(this);
+		if (m.evaluate(s, scores)) {
+			return scores[role];
 		}
 		
 		// Get the players
@@ -64,8 +184,14 @@ public class FixedDepthPlayer extends Player {
 		
 		// Check if the maximum search depth has been reached. If so, evaluate the heuristic
 		// function of the state
-		if (currentDepth >= MAX_DEPTH) {
-			return phi(s, m);
+		if (currentDepth >= depth) {
+			return phi(s, m, alpha, beta);
+		}
+		
+		// In a turn-based game only the player whose turn it is has to choose a move
+		Player currentPlayer = m.getCurrentPlayer(s);
+		if (currentPlayer != null) {
+			return maximinTurn(s, m, currentPlayer, alpha, beta, currentDepth);
 		}
 
 		List<Move> playerMoves = m.getMoves(s, this);
@@ -81,21 +207,22 @@ public class FixedDepthPlayer extends Player {
 
 			for (Move possibleOpponentMove : opponentMoves) {
 				// Apply the moves
-				Map<Player, Move> moves = new HashMap<>();
-				moves.put(this, possiblePlayerMove);
-				moves.put(opponent, possibleOpponentMove);
+				jointMoves[role] = possiblePlayerMove;
+				jointMoves[1 - role] = possibleOpponentMove;
 				int val;
 				
 				// Check the maximin value of the next state
 				try {
-					val = maximin(m.getNextState(s, moves), m, min, currentDepth + 1);
+					State next = play(s, m, jointMoves);
+					val = maximin(next, m, Math.max(alpha, max), min, currentDepth + 1);
+					unplay(next, m);
 				} catch (IllegalMoveException e) {
 					val = Integer.MAX_VALUE;
 				}
 				if (val < min) min = val;
 				
 				// Alpha pruning
-				if (min <= max) break;
+				if (min <= max || min <= alpha) break;
 			}
 
 			if (min > max) {
@@ -113,52 +240,125 @@ public class FixedDepthPlayer extends Player {
 	}
 	
 	/**
-	 * Phi is a heuristic function to evaluate a non-terminal state. It determines its value using
-	 * 'random walks'. From the given state on, it performs several random walks and averages the
-	 * values of these walks. A random walk is a sequence of random moves until a terminal state is
-	 * reached.
-	 * @param s The state to be evaluated
-	 * @param m The StateMachine which represents the concept of the game
-	 * @return The heuristic value of the state s
+	 * Uses the Minimax algorithm on a state of a turn-based game, in which only the current player
+	 * has to choose a move. If this player is the current player, it maximises the score over its
+	 * own moves. Otherwise the opponent minimises it.
+	 * In PVS mode, the first move is expected to be the best one. The other moves are searched
+	 * with a null window, which only proves that they are not better. Only if such a move turns
+	 * out to be better, it is searched again with the full window.
 	 */
-	private int phi(State s, StateMachine m) {
-		int totScore = 0;
+	private int maximinTurn(State s, StateMachine m, Player currentPlayer, int alpha, int beta,
+			int currentDepth) {
+		List<Move> moves = m.getMoves(s, currentPlayer);
 		
-		List<Player> players = s.getPlayers();
-		Player opponent = (this == players.get(0)) ? players.get(1) : players.get(0);
-		
-		for (int i = 0; i < NUM_OF_WALKS; i++) {
-			State tempState = s.clone();
-			
-			//Start walking until a terminal state is reached
-			while (!m.isTerminal(tempState)) {
-				List<Move> playerMoves = m.getMoves(tempState, this);
-				List<Move> opponentMoves = m.getMoves(tempState, opponent);
-				Map<Player, Move> moves = new HashMap<>();
-				moves.put(this, getRandomMove(playerMoves));
-				moves.put(opponent, getRandomMove(opponentMoves));
-				
-				// Apply the random moves
-				try {
-					tempState = m.getNextState(tempState, moves);
-				} catch (IllegalMoveException e) {
-					throw new AssertionError("The random moves played should have been valid");
+		if (currentPlayer == this) {
+			Move bestMove = null;
+			int max = Integer.MIN_VALUE;
+			for (Move possibleMove : moves) {
+				int a = Math.max(alpha, max);
+				int val;
+				if (searchMode == SearchMode.PVS && possibleMove != moves.get(0)) {
+					val = maximin(s, m, possibleMove, a, a + 1, currentDepth);
+					if (val > a && val < beta) {
+						val = maximin(s, m, possibleMove, a, beta, currentDepth);
+					}
+				} else {
+					val = maximin(s, m, possibleMove, a, beta, currentDepth);
+				}
+				if (val > max) {
+					// Update best move
+					max = val;
+					bestMove = possibleMove;
 				}
+				
+				// Beta pruning
+				if (max >= beta) break;
 			}
 			
-			totScore += m.getScores(tempState).get(this);
+			if (currentDepth == 0) move = bestMove;
+			return max;
+		} else {
+			int min = Integer.MAX_VALUE;
+			for (Move possibleMove : moves) {
+				int b = Math.min(beta, min);
+				int val;
+				if (searchMode == SearchMode.PVS && possibleMove != moves.get(0)) {
+					val = maximin(s, m, possibleMove, b - 1, b, currentDepth);
+					if (val < b && val > alpha) {
+						val = maximin(s, m, possibleMove, alpha, b, currentDepth);
+					}
+				} else {
+					val = maximin(s, m, possibleMove, alpha, b, currentDepth);
+				}
+				if (val < min) min = val;
+				
+				// Alpha pruning
+				if (min <= alpha) break;
+			}
+			return min;
 		}
-		
-		// Return the average of the scors of the random walks
-		return totScore/NUM_OF_WALKS;
 	}
 	
-	private Move getRandomMove(List<Move> moves) {
-		return moves.get(rnd.nextInt(moves.size()));
+	/**
+	 * Calculates the maximin value of the state reached when the current player plays the given 
+	 * move.
+	 */
+	private int maximin(State s, StateMachine m, Move move, int alpha, int beta, 
+			int currentDepth) {
+		try {
+			State next = play(s, m, move);
+			int val = maximin(next, m, alpha, beta, currentDepth + 1);
+			unplay(next, m);
+			return val;
+		} catch (IllegalMoveException e) {
+			throw new AssertionError("The moves should be valid, as they were generated by"
+					+ " the state machine");
+		}
+	}
+	
+	/**
+	 * Phi is a heuristic function to evaluate a non-terminal state. It determines its value using
+	 * 'random walks'. From the given state on, it performs several random walks and averages the
+	 * values of these walks. A random walk is a sequence of random moves until a terminal state is
+	 * reached. If the player was given an Evaluator, the value is its evaluation of the state
+	 * instead.
+	 * @param s The state to be evaluated
+	 * @param m The StateMachine which represents the concept of the game
+	 * @param alpha The lower end of the search window
+	 * @param beta The upper end of the search window
+	 * @return The heuristic value of the state s. If the number of walks is adaptive and the
+	 * value lies outside the window, it may only be a bound on the heuristic value.
+	 */
+	private int phi(State s, StateMachine m, int alpha, int beta) {
+		if (evaluator != null) return evaluator.evaluate(s, role);
+		return walks.average(s, m, role, alpha, beta);
+	}
+	
+	/**
+	 * Applies the moves to the given state. If the moves are applied in place, the state itself 
+	 * becomes the next state and the moves have to be reverted with unplay.
+	 * @return The next state
+	 */
+	private State play(State s, StateMachine m, Move[] moves) throws IllegalMoveException {
+		if (!inPlace) return m.getNextState(s, moves);
+		m.applyMoves(s, moves);
+		return s;
+	}
+	
+	private State play(State s, StateMachine m, Move move) throws IllegalMoveException {
+		if (!inPlace) return m.getNextState(s, move);
+		m.applyMove(s, move);
+		return s;
+	}
+	
+	private void unplay(State s, StateMachine m) {
+		if (inPlace) m.undoMoves(s);
 	}
 
 	@Override
 	public Player clone() {
-		return new FixedDepthPlayer(getName());
+		if (evaluator != null) return new FixedDepthPlayer(getName(), searchMode, evaluator);
+		return new FixedDepthPlayer(getName(), searchMode, walks.getMinWalks(),
+				walks.getMaxWalks(), walks.getPrecision(), walks.isParallel());
 	}
 }
@@ -1,10 +1,7 @@
 package uk.co.complex.lvs.ggp.players;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 
 import uk.co.complex.lvs.ggp.IllegalMoveException;
 import uk.co.complex.lvs.ggp.Move;
@@ -20,6 +17,31 @@ import uk.co.complex.lvs.ggp.StateMachine;
  * promising nodes (exploitation). At the same time, it does not want to narrow its search too
  * much. To achieve this, it also explores nodes which have not been looked at much (exploration).
  * This way the game tree explored in an efficient way, allowing the player to search deeper. 
+ *
+ * The nodes of the game tree are stored in a NodePool. The nodes do not store their states. Every
+ * iteration rebuilds the states of the nodes it visits by replaying their moves from the state of
+ * the root. If the pool is full, the tree stops growing and the simulations start from its leaves.
+ * The children of a node are added one at a time: as long as a node has moves which have not been
+ * tried, the next one is tried instead of selecting one of its children.
+ *
+ * The search can use several threads (root parallelisation). Every thread runs a searcher, which
+ * grows its own game tree from the current state with its own random number generator. The
+ * threads do not share anything while they search. When the time is up, the statistics of the
+ * children of the roots are merged to choose the move.
+ *
+ * Alternatively, the threads can all grow a single shared tree (tree parallelisation). The visit
+ * counts are then updated atomically and the children of a node are added with a single atomic
+ * update, so the threads do not take locks. A thread which passes through a node adds a virtual
+ * loss to it until its simulation has been backpropagated. That makes the node look worse to the
+ * other threads, so that they spread over different branches of the tree. A virtual loss counts as
+ * the worst score which the simulations have returned so far, so that it fits the scores of the
+ * game.
+ *
+ * In games like ConnectFour and Flip the same position is reached by many different sequences of
+ * moves. The search can therefore share the node of a position between all paths which reach it,
+ * so that the game tree becomes a directed acyclic graph. The nodes are looked up by the hash of
+ * their position, and the simulations through any path count for all of them. As a node then has
+ * several parents, every iteration remembers its path to backpropagate along.
  * @author Lex van der Stoep
  */
 public class MCTSPlayer extends Player {
@@ -29,14 +51,91 @@ public class MCTSPlayer extends Player {
 	
 	private StateMachine machine;
 	private Player opponent;
+	private int role;	// The index of this player in the list of players
+	private boolean inPlace;	// True iff the moves are applied to the states in place
 	
-	private Random rnd = new Random();
+	// The searchers, one for each thread. Their game trees are kept between turns, so that the
+	// search can continue from the node of the next state.
+	private final int numOfThreads;
+	private final ParallelMode parallelMode;
+	private final boolean useVirtualLoss;	// True iff several threads share a single tree
+	private final int poolSize;				// The maximum number of nodes in a tree
+	private final boolean useTranspositions;	// True iff the nodes of equal positions are shared
+	private Searcher[] searchers;
 	
 	// The number of milliseconds which should at least be left when responding to the game manager
 	private static final long minTimeToRespond = 100;
+	// The maximum number of moves between the root of the previous turn and the current state, for
+	// which the tree of the previous turn is reused
+	private static final int maxReuseDepth = 2;
+	private static final int DEFAULT_POOL_SIZE = 1 << 20;
 
 	public MCTSPlayer(String name) {
+		this(name, 1);
+	}
+	
+	/**
+	 * Creates an MCTSPlayer which searches with several threads.
+	 * @param name The name of the player
+	 * @param numOfThreads The number of threads which search for the next move
+	 */
+	public MCTSPlayer(String name, int numOfThreads) {
+		this(name, numOfThreads, ParallelMode.ROOT);
+	}
+	
+	/**
+	 * Creates an MCTSPlayer which searches with several threads.
+	 * @param name The name of the player
+	 * @param numOfThreads The number of threads which search for the next move
+	 * @param parallelMode Whether the threads grow a tree each or share a single tree
+	 */
+	public MCTSPlayer(String name, int numOfThreads, ParallelMode parallelMode) {
+		this(name, numOfThreads, parallelMode, DEFAULT_POOL_SIZE);
+	}
+	
+	/**
+	 * Creates an MCTSPlayer which searches with several threads.
+	 * @param name The name of the player
+	 * @param numOfThreads The number of threads which search for the next move
+	 * @param parallelMode Whether the threads grow a tree each or share a single tree
+	 * @param poolSize The maximum number of nodes in a game tree
+	 */
+	public MCTSPlayer(String name, int numOfThreads, ParallelMode parallelMode, int poolSize) {
+		this(name, numOfThreads, parallelMode, poolSize, false);
+	}
+	
+	/**
+	 * Creates an MCTSPlayer which searches with several threads.
+	 * @param name The name of the player
+	 * @param numOfThreads The number of threads which search for the next move
+	 * @param parallelMode Whether the threads grow a tree each or share a single tree
+	 * @param poolSize The maximum number of nodes in a game tree
+	 * @param useTranspositions True iff the paths which reach the same position share its node,
+	 * which turns the game tree into a graph
+	 */
+	public MCTSPlayer(String name, int numOfThreads, ParallelMode parallelMode, int poolSize,
+			boolean useTranspositions) {
 		super(name);
+		if (numOfThreads < 1) throw new IllegalArgumentException("The number of threads should "
+				+ "be positive. It was " + numOfThreads + ".");
+		if (poolSize < 1) throw new IllegalArgumentException("The size of the node pool should "
+				+ "be positive. It was " + poolSize + ".");
+		this.numOfThreads = numOfThreads;
+		this.parallelMode = parallelMode;
+		this.poolSize = poolSize;
+		this.useTranspositions = useTranspositions;
+		useVirtualLoss = parallelMode == ParallelMode.TREE && numOfThreads > 1;
+	}
+	
+	/**
+	 * @return The number of simulations run in the last turn, by all threads together
+	 */
+	public long getNumOfPlayouts() {
+		long total = 0;
+		if (searchers != null) {
+			for (Searcher searcher : searchers) total += searcher.numOfPlayouts;
+		}
+		return total;
 	}
 
 	@Override
@@ -44,225 +143,419 @@ public class MCTSPlayer extends Player {
 		// Set variables to keep track of available time
 		startTime = System.currentTimeMillis();
 		totTime = time;
+		
+		// The trees of the previous turn can only be reused if the game is the same
+		if (m != machine) searchers = null;
 		machine = m;
+		inPlace = m.supportsUndo();
 		
 		List<Player> players = s.getPlayers();
 		if (players.size() != 2) throw new IllegalArgumentException("The MCTS algorithm was "
 				+ "implemented for a two-player game.");
 		opponent = (players.get(0)==this)?players.get(1):players.get(0);
+		role = s.getRole(this);
+		
+		if (searchers == null) {
+			searchers = new Searcher[numOfThreads];
+			for (int i = 0; i < numOfThreads; i++) searchers[i] = new Searcher();
+		}
+		// In tree parallelisation all searchers continue with the tree of the first one
+		NodePool sharedPool = null;
+		for (Searcher searcher : searchers) {
+			searcher.startTurn(s, sharedPool);
+			if (parallelMode == ParallelMode.TREE) sharedPool = searcher.pool;
+		}
 		
 		// If there is only one legal move available, choose that one.
 		List<Move> moves = m.getMoves(s, this);
 		if (moves.size() == 1) return moves.get(0);
 		
+		// Run the searchers of the extra threads next to the searcher of the calling thread
+		Thread[] threads = new Thread[numOfThreads - 1];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(searchers[i + 1]::search);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		searchers[0].search();
+		join(threads);
 		
-		Node rootNode = new Node(null, s);
-		rootNode.visitCount++;
-		
-		// Run the MCTS algorithm, expanding the game tree as long as there is time left
-		while (getTimeLeft() > minTimeToRespond) {
-			Node currentNode = rootNode;
-			
-			// SELECTION
-			while (currentNode.visitCount > 0) {
-				currentNode.visitCount++;
-				currentNode = select(currentNode);
-				if (currentNode.isTerminal) break;
-			}
-			
-			// EXPANSION
-			expand(currentNode);
-			
-			// SIMULATION
-			int score = simulate(currentNode);
+		// Return the move which leads to the node with the highest score
+		int idx = getBestChild();
+		return moves.get(Math.max(idx, 0));
+	}
 			
-			//BACKPROPAGATION
-			currentNode.value = score;
-			currentNode = currentNode.parentNode;
-			while (currentNode != rootNode) {
-				backpropagation(currentNode);
-				currentNode = currentNode.parentNode;
-			}
+	/**
+	 * Merges the statistics of the children of the roots of all trees and finds the child with
+	 * the highest value. The value of a child is its total score in all trees divided by its visit
+	 * count in all trees.
+	 * @return The index of the child, or -1 if no root has children yet. The children of the moves
+	 * which have not been tried in any tree are not considered.
+	 */
+	private int getBestChild() {
+		int numOfTrees = (parallelMode == ParallelMode.ROOT) ? searchers.length : 1;
+		int numOfChildren = 0;
+		for (int j = 0; j < numOfTrees; j++) {
+			NodePool pool = searchers[j].pool;
+			numOfChildren = Math.max(numOfChildren, pool.getNumOfChildren(searchers[j].rootNode));
 		}
 		
-		// Find the child node of the root with the highest value
 		int idx = -1;
-		int maxVal = Integer.MIN_VALUE;
-		for (int i = 0; i < rootNode.children.size(); i++) {
-			int val = rootNode.children.get(i).value;
+		double maxVal = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < numOfChildren; i++) {
+			long visitCount = 0;
+			long totScore = 0;
+			for (int j = 0; j < numOfTrees; j++) {
+				NodePool pool = searchers[j].pool;
+				if (i >= pool.getNumOfChildren(searchers[j].rootNode)) continue;
+				int c = pool.getNode(pool.getFirstChild(searchers[j].rootNode) + i);
+				visitCount += pool.getVisitCount(c);
+				totScore += pool.getTotalScore(c);
+			}
+			
+			double val = (visitCount > 0) ? (double) totScore / visitCount : 0;
 			if (val > maxVal) {
 				idx = i;
 				maxVal = val;
 			}
 		}
-		
-		// Return the move which leads to the node with the highest score
-		return moves.get(idx);
+		return idx;
 	}
 	
 	/**
-	 * This method represents the selection procedure of the MCTS algorithm. It looks at the child
-	 * nodes of the given node and select the 'best' node to explore. Which node is the best is
-	 * determined by using the Upper Confidence Bounds applied to Trees(UCT) strategy. The selected
-	 * node is the node with the highest value according to the UCT formula.
-	 * @param n The current node
-	 * @return The 'best' child node to explore
+	 * Waits until the given threads have finished.
 	 */
-	private Node select(Node n) {
-		final double C = 100.0 * Math.sqrt(2.0); // This is the UCT constant
-		
-		Node bestNode = null;
-		int bestVal = Integer.MIN_VALUE;
-		
-		// Select the node with the highest value according to the UCB formula
-		if (n.children == null) getChildren(n);
-		for (Node c: n.children) {
-			int val = (int) (c.value + C * Math.sqrt(Math.log(n.visitCount)/c.visitCount));
-			if (val > bestVal) {
-				bestVal = val;
-				bestNode = c;
+	private static void join(Thread[] threads) {
+		boolean interrupted = false;
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
 			}
 		}
-		
-		return bestNode;
+		if (interrupted) Thread.currentThread().interrupt();
 	}
 	
-	/**
-	 * This method represents the expansion procedure of the MCTS algorithm. It adds the given node to
-	 * the searched game tree.
-	 * @param n
-	 */
-	private void expand(Node n) {
-		n.visitCount++;
-		getChildren(n);
+	private long getTimeLeft() {
+		return (startTime + totTime - System.currentTimeMillis());
 	}
 	
 	/**
-	 * This method represents the simulation procedure of the MCTS algorithm. It performs a sequence
-	 * of random moves from the given state, until it reaches a terminal state.
-	 * @param n The node to start simulating from
-	 * @return The score of the terminal state
+	 * A searcher grows a game tree with the MCTS algorithm. Every thread has its own searcher,
+	 * with its own random number generator and buffers. In tree parallelisation the searchers
+	 * share their tree.
 	 */
-	private int simulate(Node n) {
-		State currentState = n.state;
+	private class Searcher {
+		// The game tree built so far
+		NodePool pool;
+		int rootNode;
+		private State rootState;	// The state of the root, which the searcher replays moves on
+		long numOfPlayouts;			// The number of simulations run in the current turn
+		
+		// The nodes below the root which the current iteration passed through
+		private int[] path = new int[64];
+		private int pathLength;
+		
+		// Buffers for the joint moves and scores, indexed by role
+		private final Move[] jointMoves = new Move[2];
+		private final int[] scores = new int[2];
+		
+		private final Playout playout = new Playout();
+		
+		// The lowest and highest scores of the simulations of this searcher, which a virtual loss
+		// counts as. They are kept between the turns of a game, and reset when a new game starts.
+		private int lowestScore = Integer.MAX_VALUE;
+		private int highestScore = Integer.MIN_VALUE;
+		
+		/**
+		 * Prepares the searcher for a new turn. It continues with the tree of the previous turn
+		 * if the current state is one of its nodes. Otherwise it starts a new tree.
+		 * @param s The current state
+		 * @param sharedPool The tree to share with another searcher, or null if the searcher has
+		 * its own tree
+		 */
+		void startTurn(State s, NodePool sharedPool) {
+			numOfPlayouts = 0;
+			if (rootState == null || rootState.getPlayers() != s.getPlayers()) {
+				// The scores of another game need not lie in the same range
+				lowestScore = Integer.MAX_VALUE;
+				highestScore = Integer.MIN_VALUE;
+			}
+			if (sharedPool != null) {
+				pool = sharedPool;
+				rootNode = 0;
+				rootState = s.clone();
+				return;
+			}
+			
+			if (pool == null) pool = new NodePool(poolSize, useTranspositions);
+			int node = (rootState == null) ? NodePool.NONE
+					: findNode(rootNode, rootState, s, maxReuseDepth);
+			if (node == NodePool.NONE || pool.getVisitCount(node) == 0) {
+				rootNode = pool.newRoot(s.getHash());
+				pool.incrementVisitCount(rootNode);
+			} else {
+				rootNode = pool.compact(node);	// Frees the rest of the old tree
+			}
+			rootState = s.clone();
+		}
 		
-		while (!machine.isTerminal(currentState)) {
-			List<Move> playerMoves = machine.getMoves(currentState, this);
-			List<Move> opponentMoves = machine.getMoves(currentState, opponent);
-			Map<Player, Move> moves = new HashMap<>();
-			moves.put(this, getRandomMove(playerMoves));
-			moves.put(opponent, getRandomMove(opponentMoves));
+		/**
+		 * Finds the node of the given state in the tree below the given node.
+		 * @param node The root of the tree to search
+		 * @param state The state of that node. It is restored before returning.
+		 * @param s The state to find
+		 * @param maxDepth The maximum number of moves between node and the node of the state
+		 * @return The node of the state, or NONE if it was not found
+		 */
+		private int findNode(int node, State state, State s, int maxDepth) {
+			if (state.equals(s)) return node;
+			if (maxDepth == 0 || !pool.isExpanded(node)) return NodePool.NONE;
 			
-			// Apply the random moves
-			try {
-				currentState = machine.getNextState(currentState, moves);
-			} catch (IllegalMoveException e) {
-				throw new AssertionError("The random moves played should have been valid");
+			int first = pool.getFirstChild(node);
+			for (int c = first; c < first + pool.getNumOfChildren(node); c++) {
+				State next = play(state, pool.getMove(c));
+				int found = findNode(pool.getNode(c), next, s, maxDepth - 1);
+				unplay(next);
+				if (found != NodePool.NONE) return found;
 			}
+			return NodePool.NONE;
 		}
 		
-		return machine.getScores(currentState).get(this);
-	}
-	
-	/**
-	 * This method represents the backpropagation procedure of the MCTS algorithm. It updates the
-	 * value of the given node by averaging the value of its child nodes, according to their
-	 * weights.
-	 * @param n The node to start simulating from
-	 */
-	private void backpropagation(Node n) {
-		double totScore = 0;
+		/**
+		 * Runs the MCTS algorithm, expanding the game tree as long as there is time left.
+		 */
+		void search() {
+			while (getTimeLeft() > minTimeToRespond) {
+				int currentNode = rootNode;
+				State state = rootState;
+				int numOfMoves = 0;	// The number of moves played from the root
+				boolean repeated = false;	// True iff the selection reached a node on its path
+				pathLength = 0;
 		
-		// Average the values of the child nodes, with the visit counts as weights
-		for (Node c: n.children) {
-			totScore += c.value * c.visitCount;
+				// SELECTION
+				while (pool.getVisitCount(currentNode) > 0 && !pool.isTerminal(currentNode)) {
+					// If the node cannot be expanded, because another thread is expanding it or
+					// the pool is full, the simulation starts from here
+					if (!pool.isExpanded(currentNode)
+							&& !pool.expand(currentNode, getNumOfMoves(state))) break;
+					
+					// As long as the node has untried moves, the next one is tried instead of
+					// selecting a child
+					int child = pool.claimChild(currentNode);
+					if (child == NodePool.NONE && pool.getNumOfChildren(currentNode) == 0) break;
+					pool.incrementVisitCount(currentNode);
+					if (child != NodePool.NONE) {
+						// EXPANSION
+						state = play(state, pool.getMove(child));
+						expand(currentNode, child, state);
+					} else {
+						child = select(currentNode,
+								machine.getCurrentPlayer(state) == opponent);
+						state = play(state, pool.getMove(child));
+					}
+					numOfMoves++;
+					
+					// In a graph, a position which repeats would make the selection go round in
+					// a cycle, so the simulation starts from the repeated position instead
+					int next = pool.getNode(child);
+					if (next != child && isOnPath(next)) {
+						repeated = true;
+						break;
+					}
+					currentNode = next;
+					addToPath(currentNode);
+					if (useVirtualLoss) pool.addVirtualLoss(currentNode);
+				}
+				if (!repeated) pool.incrementVisitCount(currentNode);
+				
+				// SIMULATION
+				int score = simulate(state);
+				numOfPlayouts++;
+				lowestScore = Math.min(lowestScore, score);
+				highestScore = Math.max(highestScore, score);
+				
+				//BACKPROPAGATION
+				for (int i = 0; i < pathLength; i++) {
+					backpropagation(path[i], score);
+					if (useVirtualLoss) pool.removeVirtualLoss(path[i]);
+				}
+				
+				// Restore the state of the root
+				if (inPlace) {
+					for (int i = 0; i < numOfMoves; i++) machine.undoMoves(state);
+				}
+			}
 		}
 		
-		n.value = (int)(totScore/n.visitCount);
-	}
-	
-	private void getChildren(Node n) {
-		// Only set the children of the node n if that node does not already have children and it
-		// is not a terminal node.
-		if (n.children == null & !n.isTerminal) {
-			List<State> childStates = getNextStates(n.state);
-			n.children = new ArrayList<>(childStates.size());
-			for (State s : childStates) {
-				n.children.add(new Node(n, s));
-			}
+		private void addToPath(int n) {
+			if (pathLength == path.length) path = Arrays.copyOf(path, 2 * path.length);
+			path[pathLength++] = n;
 		}
-	}
-	
-	private Move getRandomMove(List<Move> moves) {
-		return moves.get(rnd.nextInt(moves.size()));
-	}
-	
-	private long getTimeLeft() {
-		return (startTime + totTime - System.currentTimeMillis());
-	}
-	
-	/**
-	 * Calculates which states are reachable within one move from the given state
-	 * @param s State from which to find the next possible states
-	 * @return The possible next states
-	 */
-	private List<State> getNextStates(State s) {
-		List<State> nextStates = new ArrayList<>();
 		
-		List<Move> thisMoves = machine.getMoves(s, this);
-		List<Move> opponentMoves = machine.getMoves(s,  opponent);
+		/**
+		 * @return True iff the given node is the root or lies on the path of the current iteration
+		 */
+		private boolean isOnPath(int n) {
+			if (n == rootNode) return true;
+			for (int i = 0; i < pathLength; i++) {
+				if (path[i] == n) return true;
+			}
+			return false;
+		}
 		
-		for (Move a: thisMoves) {
-			for (Move b: opponentMoves) {
-				Map<Player, Move> moves = new HashMap<>();
-				moves.put(this, a);
-				moves.put(opponent, b);
+		/**
+		 * This method represents the selection procedure of the MCTS algorithm. It looks at the
+		 * child nodes of the given node and select the 'best' node to explore. Which node is the
+		 * best is determined by using the Upper Confidence Bounds applied to Trees(UCT) strategy.
+		 * The selected node is the node with the highest value according to the UCT formula. A
+		 * child which has not been visited yet is always selected. The visit count of a child
+		 * already includes the iterations which are still passing through it, but their scores
+		 * have not been added yet. Every such iteration, of which the child has a virtual loss,
+		 * therefore counts as a single visit with the worst score for the player who selects: the
+		 * lowest score of the simulations so far at our turn, and the highest at the turn of the
+		 * opponent.
+		 * As in the Minimax algorithm, the opponent is assumed to choose the moves which minimise
+		 * our score, so at its turn the average scores are negated.
+		 * @param n The current node, which should be expanded
+		 * @param opponentToMove True iff it is the turn of the opponent at the current node
+		 * @return The 'best' child node to explore
+		 */
+		private int select(int n, boolean opponentToMove) {
+			final double C = 100.0 * Math.sqrt(2.0); // This is the UCT constant
+			
+			int bestNode = NodePool.NONE;
+			double bestVal = Double.NEGATIVE_INFINITY;
+			int sign = opponentToMove ? -1 : 1;
+			boolean hasScores = lowestScore <= highestScore;
+			int virtualLossScore = opponentToMove ? highestScore : lowestScore;
+			
+			// Select the node with the highest value according to the UCB formula
+			double logVisitCount = Math.log(pool.getVisitCount(n));
+			int first = pool.getFirstChild(n);
+			for (int c = first; c < first + pool.getNumOfChildren(n); c++) {
+				int node = pool.getNode(c);
+				long visitCount = pool.getVisitCount(node);
+				long totScore = pool.getTotalScore(node);
+				int virtualLoss = (useVirtualLoss && hasScores) ? pool.getVirtualLoss(node) : 0;
+				totScore += (long) virtualLossScore * virtualLoss;
+				// An iteration adds its virtual loss before it counts its visit
+				visitCount = Math.max(visitCount - virtualLoss, 0) + virtualLoss;
+				if (visitCount == 0) return c;
 				
-				try {
-					nextStates.add(machine.getNextState(s, moves));
-				} catch (IllegalMoveException e) {
-					throw new AssertionError("The moves should be valid, as they were generated by"
-							+ " the state machine");
+				double val = (double) sign * totScore / visitCount
+						+ C * Math.sqrt(logVisitCount/visitCount);
+				if (val > bestVal) {
+					bestVal = val;
+					bestNode = c;
 				}
 			}
+			
+			return bestNode;
 		}
 		
-		return nextStates;
-	}
-	
-	
-	/**
-	 * This class represents a node in the game tree. It is used in the MCTS algorithm to refer to
-	 * states as nodes.
-	 * corresponding game state.
-	 */
-	private class Node {
-		Node parentNode;
-		List<Node> children;
-		boolean isTerminal;
+		/**
+		 * This method represents the expansion procedure of the MCTS algorithm. It adds the child
+		 * of the next untried move of a node to the searched game tree. The state of a child is
+		 * only built when it is added, so the moves which are never tried cost nothing. If the
+		 * position of the child already has a node, the child is linked to it.
+		 * @param n The node
+		 * @param child The child which was claimed for the move
+		 * @param s The state of the child
+		 */
+		private void expand(int n, int child, State s) {
+			if (machine.evaluate(s, scores)) pool.setTerminal(child);
+			pool.share(child, s.getHash());
+			pool.publishChild(n, child);
+		}
 		
-		int visitCount = 0;
-		int value;
+		/**
+		 * This method represents the simulation procedure of the MCTS algorithm. It performs a
+		 * sequence of random moves from the given state, until it reaches a terminal state.
+		 * @param s The state to start simulating from. It is not changed.
+		 * @return The score of the terminal state
+		 */
+		private int simulate(State s) {
+			return playout.play(s, machine, role);
+		}
 		
-		State state;
+		/**
+		 * This method represents the backpropagation procedure of the MCTS algorithm. It adds the
+		 * score of a simulation to the total score of the given node, which lies on the path of the
+		 * simulation. The value of the node is its total score divided by its visit count, which
+		 * is the average score of the simulations through the node.
+		 * @param n The node to update
+		 * @param score The score of the simulation
+		 */
+		private void backpropagation(int n, int score) {
+			pool.addScore(n, score);
+		}
 		
-		public Node(Node parent, State s) {
-			parentNode = parent;
-			state = s;
-			isTerminal = machine.isTerminal(state);
+		/**
+		 * Calculates the number of moves which can be made from the given state. In a game which is
+		 * not turn-based, a move is a combination of a move of this player and a move of the
+		 * opponent.
+		 */
+		private int getNumOfMoves(State s) {
+			// In a turn-based game only the player whose turn it is has to choose a move
+			Player currentPlayer = machine.getCurrentPlayer(s);
+			if (currentPlayer != null) return machine.getMoves(s, currentPlayer).size();
 			
-			// If this node is the leaf node, then its value will be this player's score for the
-			// node's game state.
-			if (isTerminal) {
-				Map<Player, Integer> scores = machine.getScores(state);
-				value = scores.get(MCTSPlayer.this);
+			int numOfPlayerMoves = machine.getMoves(s, MCTSPlayer.this).size();
+			return numOfPlayerMoves * machine.getMoves(s, opponent).size();
+		}
+		
+		/**
+		 * Plays the move with the given index from the given state. If the moves are applied in
+		 * place, the state itself becomes the next state and the move has to be reverted with
+		 * unplay.
+		 * @param s The state to play the move from
+		 * @param idx The index of the move, as counted by getNumOfMoves. The move of this player
+		 * is idx / n and the move of the opponent is idx % n, with n the number of moves of the
+		 * opponent.
+		 * @return The next state
+		 */
+		private State play(State s, int idx) {
+			try {
+				Player currentPlayer = machine.getCurrentPlayer(s);
+				if (currentPlayer != null) {
+					Move move = machine.getMoves(s, currentPlayer).get(idx);
+					if (!inPlace) return machine.getNextState(s, move);
+					machine.applyMove(s, move);
+					return s;
+				}
+				
+				List<Move> opponentMoves = machine.getMoves(s, opponent);
+				jointMoves[role] = machine.getMoves(s, MCTSPlayer.this)
+						.get(idx / opponentMoves.size());
+				jointMoves[1 - role] = opponentMoves.get(idx % opponentMoves.size());
+				if (!inPlace) return machine.getNextState(s, jointMoves);
+				machine.applyMoves(s, jointMoves);
+				return s;
+			} catch (IllegalMoveException e) {
+				throw new AssertionError("The moves should be valid, as they were generated by the "
+						+ "state machine");
 			}
 		}
+			
+		private void unplay(State s) {
+			if (inPlace) machine.undoMoves(s);
+		}
 	}
 
+	/**
+	 * Decides how the threads of the search share the work.
+	 */
+	public enum ParallelMode {
+		ROOT,	// Every thread grows its own tree, the statistics of the roots are merged
+		TREE	// All threads grow a single shared tree
+	}
 
 	@Override
 	public Player clone() {
-		return new MCTSPlayer(getName());
+		return new MCTSPlayer(getName(), numOfThreads, parallelMode, poolSize, useTranspositions);
 	}
 }
@@ -1,8 +1,6 @@
 package uk.co.complex.lvs.ggp.players;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import uk.co.complex.lvs.ggp.*;
 
@@ -11,39 +9,147 @@ import uk.co.complex.lvs.ggp.*;
  * game tree in order to find a "best" possible move. It does so by trying to maximise the score 
  * it can guarantee to achieve. In other words, it assumes that the opponent(s) choose the moves 
  * which will minimise our score and then finds the moves we can make, to maximise our score.
+ *
+ * The values it proves are remembered in a bounded cache, keyed by the hash of the state. The
+ * cache is kept between turns, so subtrees which were solved before are not searched again. If
+ * the player runs out of time before the whole tree is solved, it returns the best move whose
+ * value it has proven so far.
  * @author Lex van der Stoep
  */
 public class MinimaxPlayer extends Player {
+	private static final long minTimeToRespond = 100;	// The number of milliseconds which the
+														// player should at least have left when
+														// returning its answer.
+	private static final int DEFAULT_CACHE_SIZE = 1 << 18;	// The default number of slots in the
+															// cache
+	
+	private long startTime;
+	private long totTime;
+	private boolean outOfTime;	// True iff the search ran out of time
+	private boolean inPlace;	// True iff the moves are applied to a single state in place
+	private int role;			// The index of this player in the list of players
+	
+	// The values of solved states, which are kept between turns
+	private final TranspositionTable cache;
+	private List<Player> cachePlayers;	// The players of the game whose states are in the cache
+	
+	// Buffers for the joint moves and scores, indexed by role
+	private final Move[] jointMoves = new Move[2];
+	private final int[] scores = new int[2];
 
 	public MinimaxPlayer(String name) {
+		this(name, DEFAULT_CACHE_SIZE);
+	}
+	
+	/**
+	 * Creates a MinimaxPlayer with a cache of the given size.
+	 * @param name The name of the player
+	 * @param cacheSize The number of slots in the cache
+	 */
+	public MinimaxPlayer(String name, int cacheSize) {
 		super(name);
+		cache = new TranspositionTable(cacheSize, TranspositionTable.ReplacementPolicy.ALWAYS);
 	}
 
 	@Override
 	public Move getNextMove(State s, StateMachine m, int time) {
+		// Set the start time to keep track of the elapsed time
+		startTime = System.currentTimeMillis();
+		totTime = time;
+		outOfTime = false;
+		
 		List<Player> players = s.getPlayers();
 		if (players.size() != 2) throw new IllegalArgumentException("The Minimax algorithm was "
 				+ "implemented for a two-player game.");
 		
+		role = s.getRole(this);
+		
+		// The cache is kept between turns, as long as the game is the same
+		if (s.getPlayers() != cachePlayers) {
+			cache.clear();
+			cachePlayers = s.getPlayers();
+		}
+		cache.nextGeneration();
+		
 		// If there is only one legal move available, choose that one.
 		List<Move> moves = m.getMoves(s, this);
 		if (moves.size() == 1) return moves.get(0);
 		
-		// Run the Minimax algorithm to determine moves
-		MiniMaxResult selectedMove = maximin(s, m, Integer.MAX_VALUE);
+		// Search on a private copy of the state if the moves can be applied in place
+		inPlace = m.supportsUndo();
+		State state = inPlace ? s.clone() : s;
+		
+		// Run the Minimax algorithm to determine moves. If it ran out of time, this is the best
+		// move proven so far.
+		MiniMaxResult selectedMove = maximin(state, m, Integer.MIN_VALUE, Integer.MAX_VALUE, 0);
+		if (selectedMove.bestMove != null) return selectedMove.bestMove;
 
-		return selectedMove.bestMove;
+		// Not a single move could be proven in time. Fall back on the best move of an earlier
+		// search, or else on the first move.
+		int cachedMove = TranspositionTable.getMove(cache.probe(s.getHash()));
+		if (m.getCurrentPlayer(s) == this && cachedMove >= 0 && cachedMove < moves.size()) {
+			return moves.get(cachedMove);
+		}
+		return moves.get(0);
 	}
 	
 	/**
 	 * Uses the minimax algorithm to calculate the maximum guaranteed score that can be achieved by
 	 * this player. For that, it makes the pessimistic assumption that the opponent will try to
 	 * minimise our score. It makes use of alpha-beta pruning.
+	 * States which are in the cache are not searched again if their cached value suffices. If the
+	 * search runs out of time, outOfTime is set and the result should be ignored (except at the
+	 * root, where it holds the best move proven so far).
 	 */
-	private MiniMaxResult maximin(State s, StateMachine m, int beta) {
+	private MiniMaxResult maximin(State s, StateMachine m, int alpha, int beta,
+			int currentDepth) {
 		// If the current state is terminal, return its value
-		if (m.isTerminal(s)) {
-			return new MiniMaxResult(null, m.getScores(s).get(this));
+		if (m.evaluate(s, scores)) {
+			return new MiniMaxResult(null, -1, scores[role]);
+		}
+		
+		if (getTimeLeft() < minTimeToRespond) {
+			outOfTime = true;
+			return new MiniMaxResult(null, -1, Integer.MIN_VALUE);
+		}
+		
+		// Look up the state in the cache. The root is always searched, as that gives the best move.
+		long key = s.getHash();
+		long entry = cache.probe(key);
+		if (entry != TranspositionTable.NO_ENTRY && currentDepth > 0) {
+			int value = TranspositionTable.getValue(entry);
+			int bound = TranspositionTable.getBound(entry);
+			if (bound == TranspositionTable.EXACT
+					|| (bound == TranspositionTable.LOWER_BOUND && value >= beta)
+					|| (bound == TranspositionTable.UPPER_BOUND && value <= alpha)) {
+				return new MiniMaxResult(null, -1, value);
+			}
+		}
+		
+		// The best move of an earlier search is searched first
+		int firstMove = TranspositionTable.getMove(entry);
+		MiniMaxResult result = search(s, m, alpha, beta, currentDepth, firstMove);
+		
+		// Only remember the result if the whole subtree was searched
+		if (!outOfTime) {
+			cache.store(key, TranspositionTable.INFINITE_DEPTH,
+					TranspositionTable.boundOf(result.maximin, alpha, beta), result.maximin,
+					result.moveIndex);
+		}
+		return result;
+	}
+	
+	/**
+	 * Searches the moves of a state which is not terminal.
+	 * @param firstMove The index of the move which is searched first, or -1 if the moves are
+	 * searched in the order of the state machine
+	 */
+	private MiniMaxResult search(State s, StateMachine m, int alpha, int beta, int currentDepth,
+			int firstMove) {
+		// In a turn-based game only the player whose turn it is has to choose a move
+		Player currentPlayer = m.getCurrentPlayer(s);
+		if (currentPlayer != null) {
+			return maximinTurn(s, m, currentPlayer, alpha, beta, currentDepth, firstMove);
 		}
 		
 		List<Player> players = s.getPlayers();
@@ -52,59 +158,169 @@ public class MinimaxPlayer extends Player {
 
 		List<Move> playerMoves = m.getMoves(s, this);
 		List<Move> opponentMoves = m.getMoves(s, opponent);
+		if (firstMove >= playerMoves.size()) firstMove = -1;
 
 		Move bestMove = null;
+		int bestIndex = -1;
 		int max = Integer.MIN_VALUE;
 
 		// Iterate over this player's and the opponent's available moves and determine the max 
 		// score and best move.
-		for (Move possiblePlayerMove : playerMoves) {
+		for (int k = 0; k < playerMoves.size(); k++) {
+			int i = getMoveIndex(k, firstMove);
+			Move possiblePlayerMove = playerMoves.get(i);
 			int min = Integer.MAX_VALUE;
 
 			for (Move possibleOpponentMove : opponentMoves) {
 				// Apply the moves
-				Map<Player, Move> moves = new HashMap<>(2);
-				moves.put(this, possiblePlayerMove);
-				moves.put(opponent, possibleOpponentMove);
+				jointMoves[role] = possiblePlayerMove;
+				jointMoves[1 - role] = possibleOpponentMove;
 				int val;
 				
 				// Check the maximin value of the next state
 				try {
-					val = maximin(m.getNextState(s, moves), m, min).maximin;
+					State next = play(s, m, jointMoves);
+					val = maximin(next, m, Math.max(alpha, max), min, currentDepth + 1).maximin;
+					unplay(next, m);
 				} catch (IllegalMoveException e) {
 					val = Integer.MAX_VALUE;
 				}
+				if (outOfTime) return new MiniMaxResult(bestMove, bestIndex, max);
 				if (val < min) min = val;
 				
 				// Alpha pruning
-				if (min <= max) break;
+				if (min <= max || min <= alpha) break;
 			}
 
 			if (min > max) {
 				// Update best move
 				max = min;
 				bestMove = possiblePlayerMove;
+				bestIndex = i;
 			}
 			
 			// Beta pruning
 			if (max >= beta) break;
 		}
 
-		return new MiniMaxResult(bestMove, max);
+		return new MiniMaxResult(bestMove, bestIndex, max);
+	}
+	
+	/**
+	 * Uses the minimax algorithm on a state of a turn-based game, in which only the current player
+	 * has to choose a move. If this player is the current player, it maximises the score over its
+	 * own moves. Otherwise the opponent minimises it.
+	 */
+	private MiniMaxResult maximinTurn(State s, StateMachine m, Player currentPlayer, int alpha, 
+			int beta, int currentDepth, int firstMove) {
+		List<Move> moves = m.getMoves(s, currentPlayer);
+		if (firstMove >= moves.size()) firstMove = -1;
+		Move bestMove = null;
+		int bestIndex = -1;
+		
+		if (currentPlayer == this) {
+			int max = Integer.MIN_VALUE;
+			for (int k = 0; k < moves.size(); k++) {
+				int i = getMoveIndex(k, firstMove);
+				Move move = moves.get(i);
+				int val = maximin(s, m, move, Math.max(alpha, max), beta, currentDepth);
+				if (outOfTime) return new MiniMaxResult(bestMove, bestIndex, max);
+				if (val > max) {
+					// Update best move
+					max = val;
+					bestMove = move;
+					bestIndex = i;
+				}
+				
+				// Beta pruning
+				if (max >= beta) break;
+			}
+			return new MiniMaxResult(bestMove, bestIndex, max);
+		} else {
+			int min = Integer.MAX_VALUE;
+			for (int k = 0; k < moves.size(); k++) {
+				int i = getMoveIndex(k, firstMove);
+				Move move = moves.get(i);
+				int val = maximin(s, m, move, alpha, Math.min(beta, min), currentDepth);
+				if (outOfTime) return new MiniMaxResult(bestMove, bestIndex, min);
+				if (val < min) {
+					min = val;
+					bestMove = move;
+					bestIndex = i;
+				}
+				
+				// Alpha pruning
+				if (min <= alpha) break;
+			}
+			return new MiniMaxResult(bestMove, bestIndex, min);
+		}
+	}
+	
+	/**
+	 * Calculates the maximin value of the state reached when the current player plays the given 
+	 * move.
+	 */
+	private int maximin(State s, StateMachine m, Move move, int alpha, int beta,
+			int currentDepth) {
+		try {
+			State next = play(s, m, move);
+			int val = maximin(next, m, alpha, beta, currentDepth + 1).maximin;
+			unplay(next, m);
+			return val;
+		} catch (IllegalMoveException e) {
+			throw new AssertionError("The moves should be valid, as they were generated by"
+					+ " the state machine");
+		}
+	}
+	
+	/**
+	 * Gets the index of the k-th move to search, when the move with index firstMove is searched
+	 * first and the others follow in the order of the state machine.
+	 */
+	private static int getMoveIndex(int k, int firstMove) {
+		if (firstMove < 0 || k > firstMove) return k;
+		return (k == 0) ? firstMove : k - 1;
+	}
+	
+	/**
+	 * Applies the moves to the given state. If the moves are applied in place, the state itself 
+	 * becomes the next state and the moves have to be reverted with unplay.
+	 * @return The next state
+	 */
+	private State play(State s, StateMachine m, Move[] moves) throws IllegalMoveException {
+		if (!inPlace) return m.getNextState(s, moves);
+		m.applyMoves(s, moves);
+		return s;
+	}
+	
+	private State play(State s, StateMachine m, Move move) throws IllegalMoveException {
+		if (!inPlace) return m.getNextState(s, move);
+		m.applyMove(s, move);
+		return s;
+	}
+	
+	private void unplay(State s, StateMachine m) {
+		if (inPlace) m.undoMoves(s);
+	}
+	
+	private long getTimeLeft() {
+		return (startTime + totTime - System.currentTimeMillis());
 	}
 	
 	private class MiniMaxResult {
 		Move bestMove;
+		int moveIndex;	// The index of the best move in the list of moves, or -1 if unknown
 		int maximin;
 		
-		public MiniMaxResult(Move move, int val) {
+		public MiniMaxResult(Move move, int idx, int val) {
 			bestMove = move;
+			moveIndex = idx;
 			maximin = val;
 		}
 	}
 
 	@Override
 	public Player clone() {
-		return new MinimaxPlayer(getName());
+		return new MinimaxPlayer(getName(), cache.size());
 	}
-}
\ No newline at end of file
+}
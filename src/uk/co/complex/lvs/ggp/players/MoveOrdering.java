@@ -0,0 +1,148 @@
+package uk.co.complex.lvs.ggp.players;
+
+import java.util.Arrays;
+import java.util.List;
+
+import uk.co.complex.lvs.ggp.Move;
+
+/**
+ * Decides in which order a search visits the moves of a state. Alpha-beta pruning cuts off the
+ * remaining moves as soon as a good enough move is found, so the earlier the best move is
+ * visited, the smaller the searched tree. The moves are ordered as follows:
+ * 1. The hash move: the best move found by an earlier search of the same state, such as the
+ *    principal variation of the previous iteration of iterative deepening.
+ * 2. The killer moves: the last moves which caused a cutoff in another state at the same ply.
+ * 3. All other moves, by their history score: the moves which have caused the most (and deepest)
+ *    cutoffs anywhere in the tree come first.
+ * Moves with equal priority keep the order in which the state machine generated them.
+ *
+ * The orders are written into buffers which are kept for every ply, so that ordering the moves
+ * does not allocate anything once the buffers are large enough. A MoveOrdering should therefore
+ * only be used by a single search.
+ * @author Lex van der Stoep
+ */
+class MoveOrdering {
+	private static final int KILLERS_PER_PLY = 2;
+	private static final int HISTORY_SIZE = 1 << 12;	// The number of history scores. Moves
+														// are mapped to them by their hash code.
+	private static final int MAX_HISTORY = 1 << 24;		// When a history score reaches this
+														// value, all scores are halved
+	
+	private Move[][] killers = new Move[16][KILLERS_PER_PLY];	// Indexed by ply
+	private final int[] history = new int[HISTORY_SIZE];
+	
+	// The buffers of the orders, indexed by 2 * ply + list, and of the priorities of the moves
+	private int[][] orders = new int[32][];
+	private int[] priorities = new int[16];
+	
+	/**
+	 * Orders the moves of a state.
+	 * @param moves The moves, as generated by the state machine
+	 * @param ply The distance of the state from the root of the search
+	 * @param list 0 for the moves of the current player, or 1 for the moves of the opponent in a
+	 * game which is not turn-based, where both players choose a move
+	 * @param hashMove The index of the best move found by an earlier search, or -1 if unknown
+	 * @return The indices of the moves, in the order in which they should be visited. They are the
+	 * first moves.size() elements of the buffer of the ply and list, which is overwritten by the
+	 * next call for the same ply and list.
+	 */
+	int[] order(List<Move> moves, int ply, int list, int hashMove) {
+		int n = moves.size();
+		int[] order = getBuffer(2 * ply + list, n);
+		if (priorities.length < n) priorities = new int[Math.max(n, 2 * priorities.length)];
+		Move[] plyKillers = (ply < killers.length) ? killers[ply] : null;
+		
+		// Sort the moves by decreasing priority, using an insertion sort as there are few moves
+		// and it keeps moves of equal priority in order
+		for (int i = 0; i < n; i++) {
+			int priority;
+			Move move = moves.get(i);
+			if (i == hashMove) {
+				priority = Integer.MAX_VALUE;
+			} else if (plyKillers != null && move.equals(plyKillers[0])) {
+				priority = Integer.MAX_VALUE - 1;
+			} else if (plyKillers != null && move.equals(plyKillers[1])) {
+				priority = Integer.MAX_VALUE - 2;
+			} else {
+				priority = history[getHistoryIndex(move)];
+			}
+			
+			int j = i;
+			while (j > 0 && priorities[j - 1] < priority) {
+				order[j] = order[j - 1];
+				priorities[j] = priorities[j - 1];
+				j--;
+			}
+			order[j] = i;
+			priorities[j] = priority;
+		}
+		return order;
+	}
+	
+	/**
+	 * @return The buffer with the given index, which has room for at least n moves
+	 */
+	private int[] getBuffer(int index, int n) {
+		if (index >= orders.length) orders = Arrays.copyOf(orders, Math.max(2 * orders.length,
+				index + 1));
+		int[] buffer = orders[index];
+		if (buffer == null || buffer.length < n) {
+			buffer = new int[Math.max(n, 16)];
+			orders[index] = buffer;
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Records that a move caused a cutoff.
+	 * @param move The move
+	 * @param ply The distance of the state in which the cutoff occurred from the root
+	 * @param depth The remaining search depth of that state
+	 */
+	void cutoff(Move move, int ply, int depth) {
+		// Remember the move as a killer move of its ply
+		if (ply >= killers.length) {
+			int oldLength = killers.length;
+			killers = Arrays.copyOf(killers, Math.max(2 * oldLength, ply + 1));
+			for (int i = oldLength; i < killers.length; i++) {
+				killers[i] = new Move[KILLERS_PER_PLY];
+			}
+		}
+		Move[] plyKillers = killers[ply];
+		if (!move.equals(plyKillers[0])) {
+			plyKillers[1] = plyKillers[0];
+			plyKillers[0] = move;
+		}
+		
+		// Deeper cutoffs prune larger subtrees, so they weigh more
+		int idx = getHistoryIndex(move);
+		history[idx] += depth * depth;
+		if (history[idx] >= MAX_HISTORY) halveHistory();
+	}
+	
+	/**
+	 * Forgets the killer moves and halves the history scores. This should be done between turns,
+	 * as the plies then refer to different states and older cutoffs become less relevant.
+	 */
+	void age() {
+		for (Move[] plyKillers : killers) Arrays.fill(plyKillers, null);
+		halveHistory();
+	}
+	
+	/**
+	 * Forgets everything, which should be done when a new game starts.
+	 */
+	void clear() {
+		for (Move[] plyKillers : killers) Arrays.fill(plyKillers, null);
+		Arrays.fill(history, 0);
+	}
+	
+	private void halveHistory() {
+		for (int i = 0; i < HISTORY_SIZE; i++) history[i] >>= 1;
+	}
+	
+	private static int getHistoryIndex(Move move) {
+		int h = move.hashCode();
+		return (h ^ (h >>> 16)) & (HISTORY_SIZE - 1);
+	}
+}
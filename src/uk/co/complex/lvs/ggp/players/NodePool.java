@@ -0,0 +1,465 @@
+package uk.co.complex.lvs.ggp.players;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A node pool stores the nodes of the game tree of an MCTSPlayer. Instead of being separate
+ * objects, the nodes are indices into arrays of primitives, one array for each field. This takes
+ * far less memory than objects, does not put any pressure on the garbage collector, and keeps the
+ * statistics of the children of a node next to each other in memory.
+ *
+ * The arrays are split into chunks of a fixed number of nodes, which are allocated when the pool
+ * first grows into them. A pool only takes the memory of the nodes which it has needed so far,
+ * rather than that of its maximum number of nodes, and the nodes never move when it grows, so
+ * other threads can keep using them.
+ *
+ * The children of a node are allocated as a single block, so a node only stores the index of its
+ * first child and its number of children. The block is reserved when the node is expanded, with a
+ * slot for every move, but the children are added one at a time: the child of the i-th move is
+ * the i-th child, and the moves of the slots after the last child have not been tried yet.
+ *
+ * The nodes do not store their states. Instead, every node stores the index of the move which
+ * leads to it, in the list of moves of the state of its parent, and the state of a node is rebuilt
+ * by replaying the moves from the root.
+ *
+ * The pool can also store a graph of positions instead of a tree. The node of a position is
+ * then looked up in a transposition table, keyed by the hash of the position, and a child whose
+ * position already has a node links to that node. The linked node holds the statistics and the
+ * children for every path which reaches the position, and the child only holds its move.
+ *
+ * Several threads can grow the same pool. The statistics are updated atomically, a node can only
+ * be expanded and a child can only be added by the thread which has claimed it, and a child
+ * becomes visible to the other threads once it has been published.
+ * @author Lex van der Stoep
+ */
+class NodePool {
+	static final int NONE = -1;				// The index of no node
+	private static final int EXPANDING = -2;	// The first child of a node which is being
+												// expanded
+	private static final int CHUNK_BITS = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;	// The number of nodes in a chunk
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final int capacity;					// The maximum number of nodes
+	private final boolean transpositions;
+	private final Chunk[] chunks;				// The chunks, null until the pool grows into them
+	private volatile int allocated;				// The number of nodes in those chunks. Writing it
+												// publishes the chunks to the other threads.
+	private TranspositionTable table;			// Maps the hashes of positions to their nodes, or
+												// null if the pool stores a tree
+	private final AtomicInteger size = new AtomicInteger();
+
+	// Scratch space of compact, indexed by the new index of a node. It is kept between the turns,
+	// and only grows when the pool has grown.
+	private int[] order;
+	private int[] newFirstChild;
+	private int[] newLink;
+	private int[] newIndex;				// Indexed by the old index of a node instead
+	private int[] oldNumOfMoves;
+	private int[] oldNumOfChildren;
+	private int[] oldMove;
+	private boolean[] oldTerminal;
+	private int[] oldVisitCount;
+	private long[] oldTotalScore;
+	private long[] oldKey;
+
+	/**
+	 * The fields of a chunk of nodes.
+	 */
+	private static class Chunk {
+		final int[] link;						// The node which holds the statistics of the node
+		final long[] key;						// The hash of the position of the node, if the
+												// pool stores a graph
+		final AtomicIntegerArray firstChild;	// NONE if the node has not been expanded
+		final int[] numOfMoves;					// The number of slots in the block of children
+		final AtomicIntegerArray numOfChildren;	// -1 - n while a thread adds the child after the
+												// first n children
+		final int[] move;						// The index of the move which leads to the node
+		final boolean[] terminal;
+		final AtomicIntegerArray visitCount;
+		final AtomicLongArray totalScore;		// The sum of the scores of the simulations
+												// through the node
+		final AtomicIntegerArray virtualLoss;	// The number of threads which are searching below
+												// the node
+
+		Chunk(int size, boolean transpositions) {
+			link = new int[size];
+			key = transpositions ? new long[size] : null;
+			firstChild = new AtomicIntegerArray(size);
+			numOfMoves = new int[size];
+			numOfChildren = new AtomicIntegerArray(size);
+			move = new int[size];
+			terminal = new boolean[size];
+			visitCount = new AtomicIntegerArray(size);
+			totalScore = new AtomicLongArray(size);
+			virtualLoss = new AtomicIntegerArray(size);
+		}
+	}
+
+	/**
+	 * Creates a new pool which stores a tree.
+	 * @param capacity The maximum number of nodes
+	 */
+	NodePool(int capacity) {
+		this(capacity, false);
+	}
+
+	/**
+	 * Creates a new pool.
+	 * @param capacity The maximum number of nodes
+	 * @param transpositions True iff the nodes of equal positions are shared, so that the pool
+	 * stores a graph instead of a tree
+	 */
+	NodePool(int capacity, boolean transpositions) {
+		if (capacity <= 0) throw new IllegalArgumentException("The capacity of a node pool "
+				+ "should be positive. It was " + capacity + ".");
+		this.capacity = capacity;
+		this.transpositions = transpositions;
+		chunks = new Chunk[(capacity + CHUNK_MASK) >>> CHUNK_BITS];
+		allocate(1);
+	}
+
+	private Chunk chunk(int node) {
+		return chunks[node >>> CHUNK_BITS];
+	}
+
+	/**
+	 * Makes sure that the chunks of the first n nodes have been allocated.
+	 */
+	private void allocate(int n) {
+		if (n <= allocated) return;
+		synchronized (this) {
+			int end = allocated;
+			while (end < n) {
+				int chunkSize = Math.min(CHUNK_SIZE, capacity - end);
+				chunks[end >>> CHUNK_BITS] = new Chunk(chunkSize, transpositions);
+				end += chunkSize;
+			}
+			allocated = end;
+		}
+	}
+
+	/**
+	 * @return The number of nodes in the pool
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return True iff the nodes of equal positions are shared
+	 */
+	boolean hasTranspositions() {
+		return transpositions;
+	}
+
+	/**
+	 * Removes all nodes and adds a new root, which is not terminal.
+	 * @param rootKey The hash of the position of the root
+	 * @return The index of the root
+	 */
+	int newRoot(long rootKey) {
+		size.set(1);
+		init(0, NONE);
+		if (transpositions) {
+			clearTable();
+			addPosition(0, rootKey);
+		}
+		return 0;
+	}
+
+	/**
+	 * Removes all positions from the transposition table. The table has a slot for every node
+	 * which has been allocated, so it grows along with the pool between the turns.
+	 */
+	private void clearTable() {
+		if (table == null || table.size() < allocated) {
+			table = new TranspositionTable(allocated, TranspositionTable.ReplacementPolicy.ALWAYS);
+		} else {
+			table.clear();
+		}
+	}
+
+	private void init(int node, int moveIdx) {
+		Chunk c = chunk(node);
+		int i = node & CHUNK_MASK;
+		c.link[i] = node;
+		c.firstChild.set(i, NONE);
+		c.numOfMoves[i] = 0;
+		c.numOfChildren.set(i, 0);
+		c.move[i] = moveIdx;
+		c.terminal[i] = false;
+		c.visitCount.set(i, 0);
+		c.totalScore.set(i, 0);
+		c.virtualLoss.set(i, 0);
+	}
+
+	/**
+	 * Expands the given node by reserving a block for its children, which do not have any
+	 * children yet.
+	 * @param node The node to expand
+	 * @param moves The number of moves which can be made from the state of the node
+	 * @return True iff the node was expanded. It is not expanded if another thread is expanding it
+	 * or the pool is full.
+	 */
+	boolean expand(int node, int moves) {
+		Chunk c = chunk(node);
+		int i = node & CHUNK_MASK;
+		if (!c.firstChild.compareAndSet(i, NONE, EXPANDING)) return false;
+
+		int first;
+		do {
+			first = size.get();
+			if (first + moves > capacity) {
+				c.firstChild.set(i, NONE);
+				return false;
+			}
+		} while (!size.compareAndSet(first, first + moves));
+		allocate(first + moves);
+
+		c.numOfMoves[i] = moves;
+		c.numOfChildren.set(i, 0);
+		c.firstChild.set(i, first);
+		return true;
+	}
+
+	/**
+	 * @return True iff the node has been expanded
+	 */
+	boolean isExpanded(int node) {
+		return getFirstChild(node) >= 0;
+	}
+
+	/**
+	 * Claims the next untried move of an expanded node and adds its child. The child is not
+	 * visible to other threads until it has been published.
+	 * @return The child, or NONE if all moves have been tried or another thread is adding a child
+	 */
+	int claimChild(int node) {
+		Chunk c = chunk(node);
+		int i = node & CHUNK_MASK;
+		int n = c.numOfChildren.get(i);
+		if (n < 0 || n >= c.numOfMoves[i]) return NONE;
+		if (!c.numOfChildren.compareAndSet(i, n, -1 - n)) return NONE;
+
+		int child = c.firstChild.get(i) + n;
+		init(child, n);
+		return child;
+	}
+
+	/**
+	 * Links a child which has not been published yet to the node of its position, if the pool
+	 * stores a graph and the position already has a node. Otherwise the child becomes the node of
+	 * its position.
+	 * @param child The child
+	 * @param childKey The hash of the position of the child
+	 * @return The node which holds the statistics of the child
+	 */
+	int share(int child, long childKey) {
+		if (!transpositions) return child;
+		long entry = table.probe(childKey);
+		if (entry != TranspositionTable.NO_ENTRY) {
+			int node = TranspositionTable.getValue(entry);
+			if (node < allocated && chunk(node).key[node & CHUNK_MASK] == childKey
+					&& getNode(node) == node) {
+				chunk(child).link[child & CHUNK_MASK] = node;
+				return node;
+			}
+		}
+		addPosition(child, childKey);
+		return child;
+	}
+
+	private void addPosition(int node, long nodeKey) {
+		chunk(node).key[node & CHUNK_MASK] = nodeKey;
+		table.store(nodeKey, 0, TranspositionTable.EXACT, node, -1);
+	}
+
+	/**
+	 * Makes the child added by claimChild visible to all threads.
+	 */
+	void publishChild(int node, int child) {
+		chunk(node).numOfChildren.set(node & CHUNK_MASK, child - getFirstChild(node) + 1);
+	}
+
+	/**
+	 * @return The node which holds the statistics and children of the given child. This is the
+	 * child itself, unless another node of its position was added before it.
+	 */
+	int getNode(int child) {
+		return chunk(child).link[child & CHUNK_MASK];
+	}
+
+	/**
+	 * @return The index of the first child, or a negative number if the node is not expanded
+	 */
+	int getFirstChild(int node) {
+		return chunk(node).firstChild.get(node & CHUNK_MASK);
+	}
+
+	/**
+	 * @return The number of children which have been published
+	 */
+	int getNumOfChildren(int node) {
+		int n = chunk(node).numOfChildren.get(node & CHUNK_MASK);
+		return (n >= 0) ? n : -1 - n;
+	}
+
+	/**
+	 * @return The number of slots in the block of children of an expanded node
+	 */
+	private int getNumOfMoves(int node) {
+		return chunk(node).numOfMoves[node & CHUNK_MASK];
+	}
+
+	/**
+	 * @return The index of the move which leads to the node
+	 */
+	int getMove(int node) {
+		return chunk(node).move[node & CHUNK_MASK];
+	}
+
+	boolean isTerminal(int node) {
+		return chunk(node).terminal[node & CHUNK_MASK];
+	}
+
+	/**
+	 * Marks a child which has not been published yet as terminal.
+	 */
+	void setTerminal(int node) {
+		chunk(node).terminal[node & CHUNK_MASK] = true;
+	}
+
+	int getVisitCount(int node) {
+		return chunk(node).visitCount.get(node & CHUNK_MASK);
+	}
+
+	void incrementVisitCount(int node) {
+		chunk(node).visitCount.incrementAndGet(node & CHUNK_MASK);
+	}
+
+	long getTotalScore(int node) {
+		return chunk(node).totalScore.get(node & CHUNK_MASK);
+	}
+
+	/**
+	 * Adds the score of a simulation through the node to its total score.
+	 */
+	void addScore(int node, int score) {
+		chunk(node).totalScore.addAndGet(node & CHUNK_MASK, score);
+	}
+
+	int getVirtualLoss(int node) {
+		return chunk(node).virtualLoss.get(node & CHUNK_MASK);
+	}
+
+	void addVirtualLoss(int node) {
+		chunk(node).virtualLoss.incrementAndGet(node & CHUNK_MASK);
+	}
+
+	void removeVirtualLoss(int node) {
+		chunk(node).virtualLoss.decrementAndGet(node & CHUNK_MASK);
+	}
+
+	/**
+	 * Makes the given node the root, and removes all nodes which are not below it. The nodes
+	 * which are kept are moved to the front of the pool in breadth-first order. This should not
+	 * be called while other threads use the pool.
+	 * @param node The new root, which is not linked to another node
+	 * @return The index of the new root
+	 */
+	int compact(int node) {
+		// Find the nodes below the new root in breadth-first order, so that the blocks of children
+		// stay together. order[i] is the old index of the node with new index i, or NONE for the
+		// slots of untried moves. newIndex[n] is the new index of the old node n, which is kept
+		// at the first child which links to it.
+		int oldSize = size.get();
+		if (order == null || order.length < oldSize) allocateScratch();
+		Arrays.fill(newIndex, 0, oldSize, NONE);
+		order[0] = node;
+		int numOfSlots = 1;
+		for (int i = 0; i < numOfSlots; i++) {
+			newFirstChild[i] = NONE;
+			newLink[i] = i;
+			if (order[i] == NONE) continue;
+			int old = getNode(order[i]);
+			if (newIndex[old] != NONE) {
+				newLink[i] = newIndex[old];
+				continue;
+			}
+			newIndex[old] = i;
+			if (!isExpanded(old)) continue;
+			int first = getFirstChild(old);
+			int n = getNumOfChildren(old);
+			newFirstChild[i] = numOfSlots;
+			for (int c = 0; c < getNumOfMoves(old); c++) {
+				order[numOfSlots++] = (c < n) ? first + c : NONE;
+			}
+		}
+
+		// Gather the fields of the nodes which are kept before overwriting any of them
+		for (int i = 0; i < numOfSlots; i++) {
+			if (order[i] == NONE) continue;
+			oldMove[i] = getMove(order[i]);
+			int old = getNode(order[i]);
+			if (transpositions) oldKey[i] = chunk(old).key[old & CHUNK_MASK];
+			oldNumOfMoves[i] = getNumOfMoves(old);
+			oldNumOfChildren[i] = getNumOfChildren(old);
+			oldTerminal[i] = isTerminal(old);
+			oldVisitCount[i] = getVisitCount(old);
+			oldTotalScore[i] = getTotalScore(old);
+		}
+
+		for (int i = 0; i < numOfSlots; i++) {
+			if (order[i] == NONE) continue;
+			init(i, oldMove[i]);
+			Chunk c = chunk(i);
+			int j = i & CHUNK_MASK;
+			c.link[j] = newLink[i];
+			c.terminal[j] = oldTerminal[i];
+			c.visitCount.set(j, oldVisitCount[i]);
+			c.totalScore.set(j, oldTotalScore[i]);
+		}
+		for (int i = 0; i < numOfSlots; i++) {
+			int first = newFirstChild[i];
+			if (first == NONE) continue;
+			Chunk c = chunk(i);
+			int j = i & CHUNK_MASK;
+			c.firstChild.set(j, first);
+			c.numOfMoves[j] = oldNumOfMoves[i];
+			c.numOfChildren.set(j, oldNumOfChildren[i]);
+		}
+		chunk(0).move[0] = NONE;
+		size.set(numOfSlots);
+
+		// The nodes of the positions have moved, so the table is filled again
+		if (transpositions) {
+			clearTable();
+			for (int i = 0; i < numOfSlots; i++) {
+				if (order[i] != NONE && getNode(i) == i) addPosition(i, oldKey[i]);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Allocates the scratch space of compact for all nodes which have been allocated.
+	 */
+	private void allocateScratch() {
+		int n = allocated;
+		order = new int[n];
+		newFirstChild = new int[n];
+		newLink = new int[n];
+		newIndex = new int[n];
+		oldNumOfMoves = new int[n];
+		oldNumOfChildren = new int[n];
+		oldMove = new int[n];
+		oldTerminal = new boolean[n];
+		oldVisitCount = new int[n];
+		oldTotalScore = new long[n];
+		oldKey = transpositions ? new long[n] : null;
+	}
+}
@@ -0,0 +1,129 @@
+package uk.co.complex.lvs.ggp.players;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import uk.co.complex.lvs.ggp.IllegalMoveException;
+import uk.co.complex.lvs.ggp.Move;
+import uk.co.complex.lvs.ggp.Player;
+import uk.co.complex.lvs.ggp.State;
+import uk.co.complex.lvs.ggp.StateMachine;
+
+/**
+ * A playout (or random walk) plays random moves from a state until a terminal state is reached,
+ * and returns the score of one of the players. The MCTSPlayer uses playouts for its simulations
+ * and the depth-limited players use them in their heuristic.
+ *
+ * If the state machine supports playouts, the moves are played on a scratch state which is reused
+ * for every playout, the moves of a state are written into a reusable buffer of move codes, and
+ * the moves are chosen with a small xorshift random number generator. Once the scratch state and
+ * buffers exist, a playout does not allocate anything. In other games the playout falls back on
+ * the moves and states of the state machine.
+ *
+ * A playout keeps its own scratch state and random number generator, so it should only be used
+ * by a single thread. Every thread should have its own.
+ * @author Lex van der Stoep
+ */
+public class Playout {
+	private State scratch;				// The state which the moves are played on
+	private int[] codes = new int[64];	// Buffer for the codes of the moves of a state
+
+	// Buffers for the joint moves and scores, indexed by role
+	private Move[] jointMoves = new Move[2];
+	private int[] scores = new int[2];
+
+	private long seed;	// The state of the random number generator, which is never zero
+
+	public Playout() {
+		this(ThreadLocalRandom.current().nextLong());
+	}
+
+	/**
+	 * Creates a playout whose moves are determined by the given seed.
+	 * @param seed The seed of the random number generator
+	 */
+	public Playout(long seed) {
+		this.seed = (seed != 0) ? seed : 0x9E3779B97F4A7C15L;
+	}
+
+	/**
+	 * Plays random moves from the given state until a terminal state is reached.
+	 * @param s The state to start from. It is not changed.
+	 * @param m The StateMachine which represents the concept of the game
+	 * @param role The role of the player whose score is returned
+	 * @return The score of the player in the terminal state
+	 */
+	public int play(State s, StateMachine m, int role) {
+		int numOfPlayers = s.getPlayers().size();
+		if (scores.length < numOfPlayers) scores = new int[numOfPlayers];
+		if (!m.supportsPlayouts()) return playMoves(s, m, role);
+
+		State state = m.copyState(s, scratch);
+		scratch = state;
+		while (!m.evaluate(state, scores)) {
+			int n = m.getMoveCodes(state, codes);
+			if (n > codes.length) {
+				codes = new int[Math.max(n, 2 * codes.length)];
+				m.getMoveCodes(state, codes);
+			}
+			m.applyMoveCode(state, codes[nextInt(n)]);
+		}
+		return scores[role];
+	}
+
+	/**
+	 * Plays random moves with the moves and states of the state machine, for games which do not
+	 * support playouts.
+	 */
+	private int playMoves(State s, StateMachine m, int role) {
+		List<Player> players = s.getPlayers();
+		if (jointMoves.length != players.size()) jointMoves = new Move[players.size()];
+
+		// Walk on a copy of the state if the moves can be applied in place
+		boolean inPlace = m.supportsUndo();
+		State state = inPlace ? s.clone() : s;
+
+		while (!m.evaluate(state, scores)) {
+			// Apply the random moves
+			try {
+				Player currentPlayer = m.getCurrentPlayer(state);
+				if (currentPlayer != null) {
+					// Only the current player has to choose a move
+					Move move = getRandomMove(m.getMoves(state, currentPlayer));
+					if (inPlace) m.applyMove(state, move);
+					else state = m.getNextState(state, move);
+					continue;
+				}
+
+				for (int r = 0; r < players.size(); r++) {
+					jointMoves[r] = getRandomMove(m.getMoves(state, players.get(r)));
+				}
+				if (inPlace) m.applyMoves(state, jointMoves);
+				else state = m.getNextState(state, jointMoves);
+			} catch (IllegalMoveException e) {
+				throw new AssertionError("The random moves played should have been valid");
+			}
+		}
+
+		return scores[role];
+	}
+
+	private Move getRandomMove(List<Move> moves) {
+		return moves.get(nextInt(moves.size()));
+	}
+
+	/**
+	 * Generates a pseudo-random number with the xorshift64* generator.
+	 * @param bound The number of possible values, which should be positive
+	 * @return A number from 0 (inclusive) up to bound (exclusive)
+	 */
+	private int nextInt(int bound) {
+		seed ^= seed >>> 12;
+		seed ^= seed << 25;
+		seed ^= seed >>> 27;
+		long r = (seed * 0x2545F4914F6CDD1DL) >>> 32;
+
+		// Scale the 32 random bits to the range, which avoids a division
+		return (int) ((r * bound) >>> 32);
+	}
+}
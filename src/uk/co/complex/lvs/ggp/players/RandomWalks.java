@@ -0,0 +1,209 @@
+package uk.co.complex.lvs.ggp.players;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.RecursiveAction;
+
+import uk.co.complex.lvs.ggp.State;
+import uk.co.complex.lvs.ggp.StateMachine;
+
+/**
+ * The random walks of the heuristic function (phi) of the depth-limited players. The value of a
+ * state is the average score of a number of random walks from that state.
+ *
+ * The number of walks can be adaptive (sequential sampling). After a minimum number of walks, the
+ * walks stop as soon as the mean is known precisely enough: when the 95% confidence interval of
+ * the mean is narrow enough, or when it lies entirely outside the alpha-beta window of the search,
+ * in which case the exact value does not matter. States whose walks agree then cost only a few
+ * walks, while states whose walks disagree get up to the maximum number of walks.
+ *
+ * The walks of a state can run in parallel, on the shared work-stealing pool of the JVM (the
+ * common ForkJoinPool). The batch of walks is split in halves until the tasks are small, and idle
+ * threads steal the halves which have not been started yet. Every thread which plays walks uses
+ * its own Playout, whose random number generator is seeded from a split of a single
+ * SplittableRandom, so that the threads do not share any state while they walk.
+ * @author Lex van der Stoep
+ */
+class RandomWalks {
+	private static final int WALKS_PER_TASK = 2;	// The number of walks below which a task is not
+													// split any further
+	private static final double Z = 1.96;			// The z-score of a 95% confidence interval
+
+	private final int minWalks;
+	private final int maxWalks;
+	private final int precision;	// The largest half-width of the confidence interval at
+									// which the walks stop early
+	private final boolean parallel;
+
+	// The playouts of the threads which play the walks
+	private final Playout playout;						// The playout if the walks are sequential
+	private final ThreadLocal<Playout> playouts;		// The playouts if the walks are parallel
+	private final SplittableRandom seeds = new SplittableRandom();
+
+	// The sums of the scores and of their squares of the walks from the current state
+	private long sum;
+	private long sumOfSquares;
+
+	/**
+	 * Creates random walks with a fixed number of walks.
+	 * @param numOfWalks The number of walks from every state
+	 * @param parallel True iff the walks of a state run in parallel
+	 */
+	RandomWalks(int numOfWalks, boolean parallel) {
+		this(numOfWalks, numOfWalks, 0, parallel);
+	}
+
+	/**
+	 * Creates random walks with an adaptive number of walks.
+	 * @param minWalks The minimum number of walks from every state
+	 * @param maxWalks The maximum number of walks from every state
+	 * @param precision The walks stop early once the half-width of the 95% confidence interval of
+	 * their mean is at most this
+	 * @param parallel True iff the walks of a state run in parallel
+	 */
+	RandomWalks(int minWalks, int maxWalks, int precision, boolean parallel) {
+		if (minWalks < 1) throw new IllegalArgumentException("The number of random walks should "
+				+ "be positive. It was " + minWalks + ".");
+		if (maxWalks < minWalks) throw new IllegalArgumentException("The maximum number of random "
+				+ "walks should be at least the minimum number. It was " + maxWalks + ".");
+		if (precision < 0) throw new IllegalArgumentException("The precision of the random walks "
+				+ "should not be negative. It was " + precision + ".");
+		this.minWalks = minWalks;
+		this.maxWalks = maxWalks;
+		this.precision = precision;
+		this.parallel = parallel;
+		playout = parallel ? null : new Playout();
+		playouts = parallel ? ThreadLocal.withInitial(this::newPlayout) : null;
+	}
+
+	int getMinWalks() {
+		return minWalks;
+	}
+
+	int getMaxWalks() {
+		return maxWalks;
+	}
+
+	int getPrecision() {
+		return precision;
+	}
+
+	boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * @return True iff the number of walks depends on their scores
+	 */
+	boolean isAdaptive() {
+		return minWalks < maxWalks;
+	}
+
+	/**
+	 * Plays the random walks from the given state. The state must not be changed until they have
+	 * finished. This should only be called by a single thread at a time.
+	 * @param s The state to walk from
+	 * @param m The StateMachine which represents the concept of the game
+	 * @param role The role of the player whose score is averaged
+	 * @param alpha The lower end of the search window
+	 * @param beta The upper end of the search window
+	 * @return The average score of the walks. If the walks stopped because the mean lies outside
+	 * the window, it is a bound on the value of the state rather than an estimate.
+	 */
+	int average(State s, StateMachine m, int role, int alpha, int beta) {
+		sum = 0;
+		sumOfSquares = 0;
+		int n = 0;
+		int batch = minWalks;
+		while (true) {
+			play(s, m, role, batch);
+			n += batch;
+			if (n >= maxWalks || isPrecise(n, alpha, beta)) break;
+
+			// Sequential walks are added one at a time. Parallel walks are added in batches, so
+			// that the threads have enough walks to share.
+			batch = Math.min(parallel ? minWalks : 1, maxWalks - n);
+		}
+		return (int) (sum / n);
+	}
+
+	/**
+	 * Decides whether the mean of the first n walks is precise enough to stop.
+	 */
+	private boolean isPrecise(int n, int alpha, int beta) {
+		if (n < 2) return false;
+		double mean = (double) sum / n;
+		double variance = Math.max(0, (sumOfSquares - mean * sum) / (n - 1));
+		double halfWidth = Z * Math.sqrt(variance / n);
+		return halfWidth <= precision || mean + halfWidth <= alpha || mean - halfWidth >= beta;
+	}
+
+	/**
+	 * Plays the given number of walks and adds their scores to the sums.
+	 */
+	private void play(State s, StateMachine m, int role, int n) {
+		if (parallel && n > WALKS_PER_TASK) {
+			// The calling thread plays walks as well, the halves which it forks go to the pool
+			Walks walks = new Walks(s, m, role, n);
+			walks.invoke();
+			sum += walks.sum;
+			sumOfSquares += walks.sumOfSquares;
+			return;
+		}
+
+		Playout p = parallel ? playouts.get() : playout;
+		for (int i = 0; i < n; i++) {
+			long score = p.play(s, m, role);
+			sum += score;
+			sumOfSquares += score * score;
+		}
+	}
+
+	private synchronized Playout newPlayout() {
+		return new Playout(seeds.split().nextLong());
+	}
+
+	/**
+	 * A task which plays a number of walks and sums their scores.
+	 */
+	private class Walks extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final State s;
+		private final StateMachine m;
+		private final int role;
+		private final int n;	// The number of walks
+
+		// The results of the task
+		long sum;
+		long sumOfSquares;
+
+		Walks(State s, StateMachine m, int role, int n) {
+			this.s = s;
+			this.m = m;
+			this.role = role;
+			this.n = n;
+		}
+
+		@Override
+		protected void compute() {
+			if (n <= WALKS_PER_TASK) {
+				Playout p = playouts.get();
+				for (int i = 0; i < n; i++) {
+					long score = p.play(s, m, role);
+					sum += score;
+					sumOfSquares += score * score;
+				}
+				return;
+			}
+
+			// Leave one half to be stolen and play the other half
+			Walks half = new Walks(s, m, role, n / 2);
+			half.fork();
+			Walks rest = new Walks(s, m, role, n - n / 2);
+			rest.compute();
+			half.join();
+			sum = half.sum + rest.sum;
+			sumOfSquares = half.sumOfSquares + rest.sumOfSquares;
+		}
+	}
+}
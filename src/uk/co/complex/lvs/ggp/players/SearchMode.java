@@ -0,0 +1,13 @@
+package uk.co.complex.lvs.ggp.players;
+
+/**
+ * The search algorithms which can be used by the depth-limited players (FixedDepthPlayer and
+ * VariableDepthPlayer).
+ * @author Lex van der Stoep
+ */
+public enum SearchMode {
+	ALPHA_BETA,		// Minimax with alpha-beta pruning, using the full window for every move
+	PVS				// Principal variation search: the first move of a state is searched with the
+					// full window, the other moves with a null window which only proves that
+					// they are not better. The root is searched with an aspiration window.
+}
@@ -0,0 +1,184 @@
+package uk.co.complex.lvs.ggp.players;
+
+import java.util.Arrays;
+
+/**
+ * A transposition table stores the results of searches of positions, keyed by the hash of the
+ * position. This allows a search to reuse the result of a position which was already searched,
+ * either because it was reached by a different sequence of moves or because it was searched by a
+ * previous iteration or turn.
+ *
+ * The table has a fixed number of slots, which are all allocated when the table is created. Every
+ * position maps to a single slot. When two positions compete for a slot, the replacement policy
+ * decides which one is kept.
+ *
+ * The table can be shared by several threads without locking. The entry of a slot is packed into
+ * a single long, and the slot stores the hash XOR'ed with that entry. If two threads write the same
+ * slot at the same time, the hash and entry may come from different writes, but then they do not
+ * match and the slot is treated as empty, so a thread never reads a mix of two entries.
+ * @author Lex van der Stoep
+ */
+public class TranspositionTable {
+	// The types of bounds on the value of a position
+	public static final int EXACT = 0;			// The value is the exact value
+	public static final int LOWER_BOUND = 1;	// The exact value is at least the value
+	public static final int UPPER_BOUND = 2;	// The exact value is at most the value
+
+	public static final long NO_ENTRY = 0;		// Returned by probe if there is no entry
+	public static final int INFINITE_DEPTH = (1 << 15) - 1;	// The largest depth which can be
+															// stored, larger depths are reduced
+															// to it
+	
+	// The layout of an entry: the value in bits 0-31, the index of the best move plus one in bits
+	// 32-45, the bound in bits 46-47, the depth in bits 48-62, and bit 63 is always set
+	private static final int MOVE_SHIFT = 32;
+	private static final int MOVE_MASK = (1 << 14) - 1;
+	private static final int BOUND_SHIFT = 46;
+	private static final int DEPTH_SHIFT = 48;
+
+	private final ReplacementPolicy policy;
+	private final int mask;
+
+	private final long[] keys;			// The hash of the position XOR'ed with its entry
+	private final long[] entries;
+	private final int[] generations;	// The generation in which each slot was stored
+	private int generation = 1;
+
+	/**
+	 * Creates a new transposition table.
+	 * @param size The minimum number of slots. It is rounded up to a power of two.
+	 * @param policy The replacement policy
+	 */
+	public TranspositionTable(int size, ReplacementPolicy policy) {
+		if (size <= 0) throw new IllegalArgumentException("The size of a transposition table "
+				+ "should be positive. It was " + size + ".");
+		int capacity = Integer.highestOneBit(size);
+		if (capacity < size) capacity <<= 1;
+
+		this.policy = policy;
+		mask = capacity - 1;
+		keys = new long[capacity];
+		entries = new long[capacity];
+		generations = new int[capacity];
+	}
+
+	/**
+	 * @return The number of slots in the table
+	 */
+	public int size() {
+		return keys.length;
+	}
+
+	public ReplacementPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Starts a new generation, which should be done before every new search. Entries stored in
+	 * earlier generations are kept, but they may be replaced more easily. This should not be
+	 * called while other threads use the table.
+	 */
+	public void nextGeneration() {
+		generation++;
+	}
+
+	/**
+	 * Removes all entries. This should not be called while other threads use the table.
+	 */
+	public void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(entries, NO_ENTRY);
+		Arrays.fill(generations, 0);
+		generation = 1;
+	}
+
+	/**
+	 * Looks up the position with the given hash.
+	 * @param key The hash of the position
+	 * @return The entry of the position, or NO_ENTRY if there is no such entry
+	 */
+	public long probe(long key) {
+		int slot = (int) key & mask;
+		long entry = entries[slot];
+		if ((keys[slot] ^ entry) == key) return entry;
+		return NO_ENTRY;
+	}
+
+	/**
+	 * @return The depth until which the position of the given entry was searched
+	 */
+	public static int getDepth(long entry) {
+		return (int) (entry >>> DEPTH_SHIFT) & INFINITE_DEPTH;
+	}
+
+	/**
+	 * @return The value of the position of the given entry
+	 */
+	public static int getValue(long entry) {
+		return (int) entry;
+	}
+
+	/**
+	 * @return The type of bound given by the value of the entry: EXACT, LOWER_BOUND or
+	 * UPPER_BOUND
+	 */
+	public static int getBound(long entry) {
+		return (int) (entry >>> BOUND_SHIFT) & 3;
+	}
+
+	/**
+	 * @return The index of the best move of the position of the given entry (in the list of moves
+	 * returned by the state machine), or -1 if it is not known
+	 */
+	public static int getMove(long entry) {
+		return ((int) (entry >>> MOVE_SHIFT) & MOVE_MASK) - 1;
+	}
+
+	/**
+	 * Stores the result of a search of a position, unless the replacement policy prefers the
+	 * entry which is already in its slot.
+	 * @param key The hash of the position
+	 * @param depth The depth until which the position was searched
+	 * @param bound The type of bound given by the value
+	 * @param value The value of the position
+	 * @param move The index of the best move, or -1 if it is not known
+	 */
+	public void store(long key, int depth, int bound, int value, int move) {
+		int slot = (int) key & mask;
+		depth = Math.min(depth, INFINITE_DEPTH);
+		if (policy == ReplacementPolicy.DEPTH_PREFERRED && generations[slot] == generation) {
+			long oldEntry = entries[slot];
+			long oldKey = keys[slot] ^ oldEntry;
+			if (oldKey != key && getDepth(oldEntry) > depth) return;
+		}
+
+		// Moves with an index which does not fit are stored as unknown
+		int storedMove = (move + 1 <= MOVE_MASK) ? move + 1 : 0;
+		long entry = (1L << 63) | ((long) depth << DEPTH_SHIFT) | ((long) bound << BOUND_SHIFT)
+				| ((long) storedMove << MOVE_SHIFT) | (value & 0xFFFFFFFFL);
+		entries[slot] = entry;
+		keys[slot] = key ^ entry;
+		generations[slot] = generation;
+	}
+
+	/**
+	 * Returns the type of bound given by the result of an alpha-beta search.
+	 * @param value The result of the search
+	 * @param alpha The lower end of the search window
+	 * @param beta The upper end of the search window
+	 */
+	public static int boundOf(int value, int alpha, int beta) {
+		if (value <= alpha) return UPPER_BOUND;
+		if (value >= beta) return LOWER_BOUND;
+		return EXACT;
+	}
+
+	/**
+	 * Decides whether a new entry replaces the entry of a different position in the same slot.
+	 */
+	public enum ReplacementPolicy {
+		ALWAYS,				// The new entry always replaces the old entry
+		DEPTH_PREFERRED		// The new entry only replaces an old entry of the current generation
+							// if it was searched at least as deep
+	}
+}
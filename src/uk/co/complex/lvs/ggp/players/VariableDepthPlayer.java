@@ -1,10 +1,8 @@
 package uk.co.complex.lvs.ggp.players;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 
+import uk.co.complex.lvs.ggp.Evaluator;
 import uk.co.complex.lvs.ggp.IllegalMoveException;
 import uk.co.complex.lvs.ggp.Move;
 import uk.co.complex.lvs.ggp.Player;
@@ -19,6 +17,12 @@ import uk.co.complex.lvs.ggp.StateMachine;
  * uses iterative deepening to search the game tree. It first does a fixed-depth search of the
  * tree with depth 1, then with depth 2, and so forth; until the player does not have enough time
  * left to search the tree again.
+ *
+ * The search can use several threads (Lazy SMP). The extra threads run helpers: private
+ * VariableDepthPlayers which search the same state on behalf of this player with iterative
+ * deepening of their own, starting at different depths. They share the transposition table, so
+ * each thread profits from the states which the others have already searched. Only the search of
+ * the calling thread decides the best move; the helpers stop when it has finished.
  * @author Lex van der Stoep
  */
 public class VariableDepthPlayer extends Player {
@@ -26,18 +30,173 @@ public class VariableDepthPlayer extends Player {
 	private long totTime;
 	private int MAX_DEPTH = 1;							// The max depth of the game tree search
 														// (is altered during iterative deepening)
-	private static final int NUM_OF_WALKS = 10;			// The number of random walks
+	private static final int DEFAULT_NUM_OF_WALKS = 10;	// The number of random walks
 	private static final long minTimeToRespond = 100;	// The number of milliseconds which the
 														// player should at least have left when
 														// returning its answer.
+	private static final int DEFAULT_TABLE_SIZE = 1 << 18;	// The default number of slots in the
+															// transposition table
+	private static final int COMPLETE = TranspositionTable.INFINITE_DEPTH;	// The depth in the
+															// transposition table of fully searched
+															// states
+	private static final int ASPIRATION_WINDOW = 10;	// The initial distance of the bounds of the
+														// aspiration window from its centre
 	
 	private Move bestMove;
-	private Random rnd = new Random();
+	private final RandomWalks walks;					// The random walks of phi, null if it uses
+														// the evaluator
+	private final Evaluator evaluator;					// The evaluator of phi, null if it uses
+														// random walks
 	private boolean searchedCompletely = false;			// True iff the minimax algorithm has fully
 														// searched the entire game tree
+	private boolean inPlace;							// True iff the moves are applied to a single
+														// state in place
+	private int role;									// The index of this player in the list of
+														// players
+	
+	// Buffers for the joint moves and scores, indexed by role
+	private final Move[] jointMoves = new Move[2];
+	private final int[] scores = new int[2];
+	
+	// The results of earlier searches, which are kept between iterations and turns
+	private final TranspositionTable table;
+	private List<Player> tablePlayers;					// The players of the game whose states are
+														// in the table
+	private int searchedMove;							// The index of the best move found by the
+														// last call of search
+	private final MoveOrdering ordering = new MoveOrdering();
+	private final SearchMode searchMode;
+	private long numOfNodes;							// The number of states visited by the last
+														// search
+	
+	// Parallel search
+	private final int numOfThreads;
+	private final VariableDepthPlayer owner;			// The player on whose behalf this player
+														// searches (this, unless it is a helper)
+	private VariableDepthPlayer[] helpers;
+	private Thread[] helperThreads;
+	private volatile boolean stopped = false;			// True iff the helpers should stop
 	
 	public VariableDepthPlayer(String name) {
+		this(name, SearchMode.ALPHA_BETA);
+	}
+	
+	public VariableDepthPlayer(String name, SearchMode searchMode) {
+		this(name, DEFAULT_TABLE_SIZE, TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED,
+				searchMode, 1);
+	}
+	
+	/**
+	 * Creates a VariableDepthPlayer with a transposition table of the given size.
+	 * @param name The name of the player
+	 * @param tableSize The number of slots in the transposition table
+	 * @param policy The replacement policy of the transposition table
+	 * @param searchMode The search algorithm
+	 * @param numOfThreads The number of threads which search for the next move
+	 */
+	public VariableDepthPlayer(String name, int tableSize,
+			TranspositionTable.ReplacementPolicy policy, SearchMode searchMode, int numOfThreads) {
+		this(name, tableSize, policy, searchMode, numOfThreads, DEFAULT_NUM_OF_WALKS, false);
+	}
+	
+	/**
+	 * Creates a VariableDepthPlayer with a transposition table of the given size and the given
+	 * number of random walks in its heuristic.
+	 * @param name The name of the player
+	 * @param tableSize The number of slots in the transposition table
+	 * @param policy The replacement policy of the transposition table
+	 * @param searchMode The search algorithm
+	 * @param numOfThreads The number of threads which search for the next move
+	 * @param numOfWalks The number of random walks from every state which is evaluated
+	 * @param parallelWalks True iff the walks of a state run in parallel
+	 */
+	public VariableDepthPlayer(String name, int tableSize,
+			TranspositionTable.ReplacementPolicy policy, SearchMode searchMode, int numOfThreads,
+			int numOfWalks, boolean parallelWalks) {
+		this(name, tableSize, policy, searchMode, numOfThreads, numOfWalks, numOfWalks, 0,
+				parallelWalks);
+	}
+	
+	/**
+	 * Creates a VariableDepthPlayer whose heuristic adapts the number of random walks to their
+	 * scores. After minWalks walks, the walks of a state stop as soon as the 95% confidence
+	 * interval of their mean is at most precision wide on either side, or lies outside the
+	 * alpha-beta window.
+	 * @param name The name of the player
+	 * @param tableSize The number of slots in the transposition table
+	 * @param policy The replacement policy of the transposition table
+	 * @param searchMode The search algorithm
+	 * @param numOfThreads The number of threads which search for the next move
+	 * @param minWalks The minimum number of random walks from every state which is evaluated
+	 * @param maxWalks The maximum number of random walks from every state which is evaluated
+	 * @param precision The half-width of the confidence interval at which the walks stop
+	 * @param parallelWalks True iff the walks of a state run in parallel
+	 */
+	public VariableDepthPlayer(String name, int tableSize,
+			TranspositionTable.ReplacementPolicy policy, SearchMode searchMode, int numOfThreads,
+			int minWalks, int maxWalks, int precision, boolean parallelWalks) {
+		this(name, tableSize, policy, searchMode, numOfThreads,
+				new RandomWalks(minWalks, maxWalks, precision, parallelWalks), null);
+	}
+	
+	/**
+	 * Creates a VariableDepthPlayer whose heuristic is a static evaluation of the state, rather
+	 * than random walks. The evaluator must belong to the game which the player plays, and it is
+	 * shared by all threads of the search.
+	 * @param name The name of the player
+	 * @param tableSize The number of slots in the transposition table
+	 * @param policy The replacement policy of the transposition table
+	 * @param searchMode The search algorithm
+	 * @param numOfThreads The number of threads which search for the next move
+	 * @param evaluator The evaluator of the states at the maximum depth
+	 */
+	public VariableDepthPlayer(String name, int tableSize,
+			TranspositionTable.ReplacementPolicy policy, SearchMode searchMode, int numOfThreads,
+			Evaluator evaluator) {
+		this(name, tableSize, policy, searchMode, numOfThreads, null, evaluator);
+		if (evaluator == null) throw new IllegalArgumentException("The evaluator should not be "
+				+ "null.");
+	}
+	
+	private VariableDepthPlayer(String name, int tableSize,
+			TranspositionTable.ReplacementPolicy policy, SearchMode searchMode, int numOfThreads,
+			RandomWalks walks, Evaluator evaluator) {
 		super(name);
+		if (numOfThreads < 1) throw new IllegalArgumentException("The number of threads should "
+				+ "be positive. It was " + numOfThreads + ".");
+		table = new TranspositionTable(tableSize, policy);
+		this.searchMode = searchMode;
+		this.numOfThreads = numOfThreads;
+		this.walks = walks;
+		this.evaluator = evaluator;
+		owner = this;
+	}
+	
+	/**
+	 * Creates a helper, which searches on behalf of the given player and shares its
+	 * transposition table.
+	 */
+	private VariableDepthPlayer(VariableDepthPlayer owner) {
+		super(owner.getName());
+		table = owner.table;
+		searchMode = owner.searchMode;
+		numOfThreads = 1;
+		RandomWalks ownerWalks = owner.walks;
+		walks = (ownerWalks == null) ? null : new RandomWalks(ownerWalks.getMinWalks(),
+				ownerWalks.getMaxWalks(), ownerWalks.getPrecision(), ownerWalks.isParallel());
+		evaluator = owner.evaluator;
+		this.owner = owner;
+	}
+	
+	/**
+	 * @return The number of states visited by the last search, by all threads together
+	 */
+	public long getNumOfNodes() {
+		long total = numOfNodes;
+		if (helpers != null) {
+			for (VariableDepthPlayer helper : helpers) total += helper.numOfNodes;
+		}
+		return total;
 	}
 
 	@Override
@@ -51,21 +210,142 @@ public class VariableDepthPlayer extends Player {
 		if (players.size() != 2) throw new IllegalArgumentException("The Minimax algorithm was "
 				+ "implemented for a two-player game.");
 		
+		role = s.getRole(this);
+		
+		if (helpers == null && numOfThreads > 1) {
+			helpers = new VariableDepthPlayer[numOfThreads - 1];
+			for (int i = 0; i < helpers.length; i++) helpers[i] = new VariableDepthPlayer(this);
+		}
+		
+		// The transposition table is kept between turns, as long as the game is the same
+		boolean newGame = s.getPlayers() != tablePlayers;
+		if (newGame) {
+			table.clear();
+			tablePlayers = s.getPlayers();
+		}
+		table.nextGeneration();
+		startTurn(newGame);
+		
 		// If there is only one legal move available, choose that one.
 		List<Move> moves = m.getMoves(s, this);
 		if (moves.size() == 1) return moves.get(0);
 
-		// Perform iterative deepening as long as there is enough time left and it has not yet
-		// fully searched the game tree
-		MAX_DEPTH = 1;
+		// Search on a private copy of the state if the moves can be applied in place
+		inPlace = m.supportsUndo();
+		State state = inPlace ? s.clone() : s;
+
+		// Start the helpers, each on its own copy of the state. Half of them start one level
+		// deeper, so that the threads spread over different depths.
+		if (helpers != null) {
+			helperThreads = new Thread[helpers.length];
+			for (int i = 0; i < helpers.length; i++) {
+				final VariableDepthPlayer helper = helpers[i];
+				final State helperState = inPlace ? s.clone() : s;
+				final int firstDepth = 1 + (i + 1) % 2;
+				helper.startTime = startTime;
+				helper.totTime = totTime;
+				helper.role = role;
+				helper.inPlace = inPlace;
+				helper.startTurn(newGame);
+				helperThreads[i] = new Thread(() -> helper.iterativeDeepening(helperState, m,
+						firstDepth));
+				helperThreads[i].setDaemon(true);
+				helperThreads[i].start();
+			}
+		}
+
+		iterativeDeepening(state, m, 1);
+		if (helpers != null) stopHelpers();
+		return bestMove;
+	}
+	
+	/**
+	 * Prepares the move ordering of this player for a new turn.
+	 * @param newGame True iff the turn is the first turn of a new game
+	 */
+	private void startTurn(boolean newGame) {
+		if (newGame) ordering.clear();
+		ordering.age();
+		numOfNodes = 0;
+	}
+	
+	/**
+	 * Stops the helpers and waits until they have finished.
+	 */
+	private void stopHelpers() {
+		stopped = true;
+		boolean interrupted = false;
+		for (Thread thread : helperThreads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		stopped = false;
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * Performs iterative deepening as long as there is enough time left and it has not yet fully
+	 * searched the game tree.
+	 * @param state The state to search
+	 * @param firstDepth The search depth of the first iteration
+	 */
+	private void iterativeDeepening(State state, StateMachine m, int firstDepth) {
+		MAX_DEPTH = firstDepth;
 		searchedCompletely = false;
-		while (!searchedCompletely & getTimeLeft() > minTimeToRespond) {
-			// Run the Minimax algorithm to determine move
+		int value = 0;
+		while (!searchedCompletely && !isOutOfTime()) {
+			// Run the Minimax algorithm to determine move. This sets bestMove, if it ran
+			// succesfully. In PVS mode, the value of the previous iteration is the centre of
+			// the aspiration window. The first iteration has no such value, so it searches
+			// with the full window.
 			searchedCompletely = true;
-			maximin(s, m, Integer.MAX_VALUE, 0); // this sets bestMove, if it ran succesfully
+			if (searchMode == SearchMode.PVS && MAX_DEPTH > firstDepth) {
+				value = aspirationSearch(state, m, value);
+			} else {
+				value = maximin(state, m, Integer.MIN_VALUE, Integer.MAX_VALUE, 0);
+			}
 			MAX_DEPTH++;
 		}
-		return bestMove;
+	}
+	
+	/**
+	 * Searches the root with an aspiration window: a small window around the expected value,
+	 * which prunes more than the full window. If the value turns out to lie outside the window,
+	 * the window is widened on that side and the root is searched again.
+	 * @param guess The expected value of the root
+	 * @return The value of the root
+	 */
+	private int aspirationSearch(State s, StateMachine m, int guess) {
+		long delta = ASPIRATION_WINDOW;
+		int alpha = clamp(guess - delta);
+		int beta = clamp(guess + delta);
+		while (true) {
+			Move previousBestMove = bestMove;
+			searchedCompletely = true;
+			int value = maximin(s, m, alpha, beta, 0);
+			if (value <= alpha && alpha != Integer.MIN_VALUE) {
+				// All moves failed low, so the best move of this search cannot be trusted
+				bestMove = previousBestMove;
+				alpha = clamp(value - delta);
+			} else if (value >= beta && beta != Integer.MAX_VALUE) {
+				beta = clamp(value + delta);
+			} else {
+				return value;
+			}
+			
+			// If there is not enough time left, keep the best move found so far
+			if (isOutOfTime()) return value;
+			delta *= 2;
+		}
+	}
+	
+	private static int clamp(long value) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
 	}
 	
 	/**
@@ -74,127 +354,317 @@ public class VariableDepthPlayer extends Player {
 	 * minimise our score. It makes use of alpha-beta pruning.
 	 * Once the algorithm reaches a certain search depth, the search is terminated (does not go any
 	 * deeper). The value given to the current state is determined by some heuristic function.
+	 * The results are stored in the transposition table, and states which are already in there
+	 * are not searched again if their stored result suffices.
 	 * @return The minimum guaranteed score that can be achieved by this player.
 	 */
-	private int maximin(State s, StateMachine m, int beta, int currentDepth) {
+	private int maximin(State s, StateMachine m, int alpha, int beta, int currentDepth) {
+		numOfNodes++;
+		
 		// If the current state is terminal, return its value
-		if (m.isTerminal(s)) {
-			return m.getScores(s).get(this);
+		if (m.evaluate(s, scores)) {
+			return scores[role];
 		}
 		
-		// Get the players
-		List<Player> players = s.getPlayers();
-		Player opponent = (this == players.get(0)) ? players.get(1) : players.get(0);
+		// Look up the state in the transposition table. If it was searched deep enough and its
+		// stored value decides the outcome for the current window, there is no need to search it
+		// again. The root is always searched, as that sets the best move.
+		int depth = MAX_DEPTH - currentDepth;			// The remaining search depth
+		long key = s.getHash();
+		long entry = table.probe(key);
+		int entryDepth = TranspositionTable.getDepth(entry);
+		if (entry != TranspositionTable.NO_ENTRY && currentDepth > 0 && entryDepth >= depth) {
+			int value = TranspositionTable.getValue(entry);
+			int bound = TranspositionTable.getBound(entry);
+			if (bound == TranspositionTable.EXACT
+					|| (bound == TranspositionTable.LOWER_BOUND && value >= beta)
+					|| (bound == TranspositionTable.UPPER_BOUND && value <= alpha)) {
+				if (entryDepth != COMPLETE) searchedCompletely = false;
+				return value;
+			}
+		}
 		
 		// Check if the maximum search depth has been reached. If so, evaluate the heuristic
 		// function of the state. At this point it is certain that the tree has not been fully
 		// searched.
-		if (currentDepth >= MAX_DEPTH) {
+		if (depth <= 0) {
 			searchedCompletely = false;
-			return phi(s, m);
+			int value = phi(s, m, alpha, beta);
+			// Only adaptive walks may stop at a bound, the evaluator always gives an exact value
+			boolean adaptive = walks != null && walks.isAdaptive();
+			int bound = adaptive ? TranspositionTable.boundOf(value, alpha, beta)
+					: TranspositionTable.EXACT;
+			table.store(key, 0, bound, value, -1);
+			return value;
+		}
+		
+		// Search the state, keeping track of whether its own subtree is searched completely
+		boolean searchedCompletelyBefore = searchedCompletely;
+		searchedCompletely = true;
+		int hashMove = TranspositionTable.getMove(entry);
+		int value = search(s, m, alpha, beta, currentDepth, hashMove);
+		boolean subtreeSearchedCompletely = searchedCompletely;
+		searchedCompletely = searchedCompletelyBefore & subtreeSearchedCompletely;
+		
+		// Only store the result if there was enough time to search the tree
+		if (!isOutOfTime()) {
+			table.store(key, subtreeSearchedCompletely ? COMPLETE : depth,
+					TranspositionTable.boundOf(value, alpha, beta), value, searchedMove);
+		}
+		return value;
+	}
+	
+	/**
+	 * Searches the moves of a state which is not terminal and above the maximum search depth.
+	 * This sets searchedMove to the index of the best move found.
+	 * @param hashMove The index of the best move found by an earlier search of the state, which
+	 * is searched first, or -1 if unknown
+	 * @return The minimum guaranteed score that can be achieved by this player.
+	 */
+	private int search(State s, StateMachine m, int alpha, int beta, int currentDepth,
+			int hashMove) {
+		// Get the players
+		List<Player> players = s.getPlayers();
+		Player opponent = (owner == players.get(0)) ? players.get(1) : players.get(0);
+		
+		// In a turn-based game only the player whose turn it is has to choose a move
+		Player currentPlayer = m.getCurrentPlayer(s);
+		if (currentPlayer != null) {
+			return maximinTurn(s, m, currentPlayer, alpha, beta, currentDepth, hashMove);
 		}
 
-		List<Move> playerMoves = m.getMoves(s, this);
+		List<Move> playerMoves = m.getMoves(s, owner);
 		List<Move> opponentMoves = m.getMoves(s, opponent);
+		int[] playerOrder = ordering.order(playerMoves, currentDepth, 0, hashMove);
+		int[] opponentOrder = ordering.order(opponentMoves, currentDepth, 1, -1);
 
 		Move move = null;
+		int moveIndex = -1;
 		int max = Integer.MIN_VALUE;
 
 		// Iterate over this player's and the opponent's available moves and determine the max 
 		// score and best move.
-		for (Move possiblePlayerMove : playerMoves) {
+		for (int k = 0; k < playerMoves.size(); k++) {
+			int i = playerOrder[k];
+			Move possiblePlayerMove = playerMoves.get(i);
 			int min = Integer.MAX_VALUE;
 
-			for (Move possibleOpponentMove : opponentMoves) {
+			for (int l = 0; l < opponentMoves.size(); l++) {
+				int j = opponentOrder[l];
+				Move possibleOpponentMove = opponentMoves.get(j);
+				
 				// If there is not enough time left, stop the recursive calls
-				if (getTimeLeft() < minTimeToRespond) return Integer.MIN_VALUE;
+				if (isOutOfTime()) return Integer.MIN_VALUE;
 				
 				// Apply the moves
-				Map<Player, Move> moves = new HashMap<>();
-				moves.put(this, possiblePlayerMove);
-				moves.put(opponent, possibleOpponentMove);
+				jointMoves[role] = possiblePlayerMove;
+				jointMoves[1 - role] = possibleOpponentMove;
 				int val;
 				
 				// Check the maximin value of the next state
 				try {
-					val = maximin(m.getNextState(s, moves), m, min, currentDepth + 1);
+					State next = play(s, m, jointMoves);
+					val = maximin(next, m, Math.max(alpha, max), min, currentDepth + 1);
+					unplay(next, m);
 				} catch (IllegalMoveException e) {
 					val = Integer.MAX_VALUE;
 				}
 				if (val < min) min = val;
 				
 				// Alpha pruning
-				if (min <= max) break;
+				if (min <= max || min <= alpha) {
+					ordering.cutoff(possibleOpponentMove, currentDepth, MAX_DEPTH - currentDepth);
+					break;
+				}
 			}
 
 			if (min > max) {
 				// Update best move
 				max = min;
 				move = possiblePlayerMove;
+				moveIndex = i;
 			}
 			
 			// Beta pruning
-			if (max >= beta) break;
+			if (max >= beta) {
+				ordering.cutoff(possiblePlayerMove, currentDepth, MAX_DEPTH - currentDepth);
+				break;
+			}
 		}
 
 		// Only update the bestMove if there was enough time to search the tree
-		if (currentDepth == 0 && getTimeLeft() > minTimeToRespond) {
+		if (currentDepth == 0 && !isOutOfTime()) {
 			bestMove = move;
 		}
+		searchedMove = moveIndex;
 		return max;
 	}
 	
 	/**
-	 * Phi is a heuristic function to evaluate a non-terminal state. It determines its value using
-	 * 'random walks'. From the given state on, it performs several random walks and averages the
-	 * values of these walks. A random walk is a sequence of random moves until a terminal state is
-	 * reached.
-	 * @param s The state to be evaluated
-	 * @param m The StateMachine which represents the concept of the game
-	 * @return The heuristic value of the state s
+	 * Uses the Minimax algorithm on a state of a turn-based game, in which only the current player
+	 * has to choose a move. If this player is the current player, it maximises the score over its
+	 * own moves. Otherwise the opponent minimises it. The moves are visited in the order given by
+	 * the move ordering.
+	 * In PVS mode, the first move is expected to be the best one. The other moves are searched
+	 * with a null window, which only proves that they are not better. Only if such a move turns
+	 * out to be better, it is searched again with the full window.
 	 */
-	private int phi(State s, StateMachine m) {
-		int totScore = 0;
-		
-		List<Player> players = s.getPlayers();
-		Player opponent = (this == players.get(0)) ? players.get(1) : players.get(0);
+	private int maximinTurn(State s, StateMachine m, Player currentPlayer, int alpha, int beta,
+			int currentDepth, int hashMove) {
+		List<Move> moves = m.getMoves(s, currentPlayer);
+		int[] order = ordering.order(moves, currentDepth, 0, hashMove);
 		
-		for (int i = 0; i < NUM_OF_WALKS; i++) {
-			State tempState = s.clone();
-			
-			//Start walking until a terminal state is reached
-			while (!m.isTerminal(tempState)) {
-				List<Move> playerMoves = m.getMoves(tempState, this);
-				List<Move> opponentMoves = m.getMoves(tempState, opponent);
-				Map<Player, Move> moves = new HashMap<>();
-				moves.put(this, getRandomMove(playerMoves));
-				moves.put(opponent, getRandomMove(opponentMoves));
+		if (currentPlayer == owner) {
+			Move move = null;
+			int moveIndex = -1;
+			int max = Integer.MIN_VALUE;
+			for (int k = 0; k < moves.size(); k++) {
+				// If there is not enough time left, stop the recursive calls
+				if (isOutOfTime()) return Integer.MIN_VALUE;
 				
-				// Apply the random moves
-				try {
-					tempState = m.getNextState(tempState, moves);
-				} catch (IllegalMoveException e) {
-					throw new AssertionError("The random moves played should have been valid");
+				int i = order[k];
+				Move possibleMove = moves.get(i);
+				int a = Math.max(alpha, max);
+				int val;
+				if (searchMode == SearchMode.PVS && i != order[0]) {
+					val = maximin(s, m, possibleMove, a, a + 1, currentDepth);
+					if (val > a && val < beta) {
+						val = maximin(s, m, possibleMove, a, beta, currentDepth);
+					}
+				} else {
+					val = maximin(s, m, possibleMove, a, beta, currentDepth);
+				}
+				if (val > max) {
+					// Update best move
+					max = val;
+					move = possibleMove;
+					moveIndex = i;
+				}
+				
+				// Beta pruning
+				if (max >= beta) {
+					ordering.cutoff(possibleMove, currentDepth, MAX_DEPTH - currentDepth);
+					break;
 				}
 			}
 			
-			totScore += m.getScores(tempState).get(this);
+			// Only update the bestMove if there was enough time to search the tree
+			if (currentDepth == 0 && !isOutOfTime()) {
+				bestMove = move;
+			}
+			searchedMove = moveIndex;
+			return max;
+		} else {
+			int moveIndex = -1;
+			int min = Integer.MAX_VALUE;
+			for (int k = 0; k < moves.size(); k++) {
+				// If there is not enough time left, stop the recursive calls
+				if (isOutOfTime()) return Integer.MIN_VALUE;
+				
+				int i = order[k];
+				Move possibleMove = moves.get(i);
+				int b = Math.min(beta, min);
+				int val;
+				if (searchMode == SearchMode.PVS && i != order[0]) {
+					val = maximin(s, m, possibleMove, b - 1, b, currentDepth);
+					if (val < b && val > alpha) {
+						val = maximin(s, m, possibleMove, alpha, b, currentDepth);
+					}
+				} else {
+					val = maximin(s, m, possibleMove, alpha, b, currentDepth);
+				}
+				if (val < min) {
+					min = val;
+					moveIndex = i;
+				}
+				
+				// Alpha pruning
+				if (min <= alpha) {
+					ordering.cutoff(possibleMove, currentDepth, MAX_DEPTH - currentDepth);
+					break;
+				}
+			}
+			searchedMove = moveIndex;
+			return min;
 		}
-		
-		// Return the average of the scors of the random walks
-		return totScore/NUM_OF_WALKS;
 	}
 	
-	private Move getRandomMove(List<Move> moves) {
-		return moves.get(rnd.nextInt(moves.size()));
+	/**
+	 * Calculates the maximin value of the state reached when the current player plays the given 
+	 * move.
+	 */
+	private int maximin(State s, StateMachine m, Move move, int alpha, int beta, 
+			int currentDepth) {
+		try {
+			State next = play(s, m, move);
+			int val = maximin(next, m, alpha, beta, currentDepth + 1);
+			unplay(next, m);
+			return val;
+		} catch (IllegalMoveException e) {
+			throw new AssertionError("The moves should be valid, as they were generated by"
+					+ " the state machine");
+		}
+	}
+	
+	/**
+	 * Phi is a heuristic function to evaluate a non-terminal state. It determines its value using
+	 * 'random walks'. From the given state on, it performs several random walks and averages the
+	 * values of these walks. A random walk is a sequence of random moves until a terminal state is
+	 * reached. If the player was given an Evaluator, the value is its evaluation of the state
+	 * instead.
+	 * @param s The state to be evaluated
+	 * @param m The StateMachine which represents the concept of the game
+	 * @param alpha The lower end of the search window
+	 * @param beta The upper end of the search window
+	 * @return The heuristic value of the state s. If the number of walks is adaptive and the
+	 * value lies outside the window, it may only be a bound on the heuristic value.
+	 */
+	private int phi(State s, StateMachine m, int alpha, int beta) {
+		if (evaluator != null) return evaluator.evaluate(s, role);
+		return walks.average(s, m, role, alpha, beta);
+	}
+	
+	/**
+	 * Applies the moves to the given state. If the moves are applied in place, the state itself 
+	 * becomes the next state and the moves have to be reverted with unplay.
+	 * @return The next state
+	 */
+	private State play(State s, StateMachine m, Move[] moves) throws IllegalMoveException {
+		if (!inPlace) return m.getNextState(s, moves);
+		m.applyMoves(s, moves);
+		return s;
+	}
+	
+	private State play(State s, StateMachine m, Move move) throws IllegalMoveException {
+		if (!inPlace) return m.getNextState(s, move);
+		m.applyMove(s, move);
+		return s;
+	}
+	
+	private void unplay(State s, StateMachine m) {
+		if (inPlace) m.undoMoves(s);
 	}
 	
 	private long getTimeLeft() {
 		return (startTime + totTime - System.currentTimeMillis());
 	}
+	
+	/**
+	 * @return True iff the search should stop, because there is not enough time left or because
+	 * this is a helper whose owner has finished its search
+	 */
+	private boolean isOutOfTime() {
+		return getTimeLeft() < minTimeToRespond || owner.stopped;
+	}
 
 	@Override
 	public Player clone() {
-		return new VariableDepthPlayer(getName());
+		if (evaluator != null) {
+			return new VariableDepthPlayer(getName(), table.size(), table.getPolicy(), searchMode,
+					numOfThreads, evaluator);
+		}
+		return new VariableDepthPlayer(getName(), table.size(), table.getPolicy(), searchMode,
+				numOfThreads, walks.getMinWalks(), walks.getMaxWalks(), walks.getPrecision(),
+				walks.isParallel());
 	}
 }